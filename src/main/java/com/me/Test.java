@@ -1,26 +1,78 @@
 package com.me;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.sql.DataSource;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.time.LocalDate;
 import java.util.List;
-import java.util.Queue;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 //枚举类也完全可以像其他类那样定义自己的字段、方法
 enum World {
@@ -383,6 +435,7 @@ public class Test {
         Students students3 = Students.create(1, "aaa");
         System.out.println(students1 == students2);
         System.out.println(students1 == students3);
+        System.out.println(Students.getCache());
 
         /**代理:Proxy
          *
@@ -423,7 +476,13 @@ public class Test {
             // }
         }
 
-        DataSource pooledDataSource = new PooledDataSource(jdbcUrl, jdbcUsername, jdbcPassword);
+        DataSource pooledDataSource = PooledDataSourceBuilder.builder()
+                .setUrl(jdbcUrl)
+                .setUsername(jdbcUsername)
+                .setPassword(jdbcPassword)
+                .setMaxPoolSize(20) // 最多打开20个物理连接
+                .setConnectionTimeout(3000) // 连接全部借出时最多等待3秒,超时抛出SQLTransientConnectionException
+                .build();
         try (Connection conn = pooledDataSource.getConnection()) {
         }
         try (Connection conn = pooledDataSource.getConnection()) {
@@ -595,24 +654,175 @@ class MyFileVisitor extends SimpleFileVisitor<Path> {
 interface DiscountStrategy {
     // 计算折扣额度:
     BigDecimal getDiscount(BigDecimal total);
+
+    // 以分为单位计算折扣额度,结果必须和getDiscount()完全一致.
+    // 默认通过BigDecimal计算,内置的策略用整数运算覆写:
+    default long getDiscountCents(long totalCents) {
+        return getDiscount(BigDecimal.valueOf(totalCents, 2)).setScale(2).unscaledValue().longValueExact();
+    }
+}
+//按比例折扣:折扣额度 = 金额 × rate,保留两位小数并向0截断.
+// rate在创建时解析一次,计算时不再创建常量
+class PercentageDiscountStrategy implements DiscountStrategy {
+    private final BigDecimal rate;
+    // rate = rateUnscaled / 10^rateScale,用于整数计算:
+    private final long rateUnscaled;
+    private final long rateDivisor;
+
+    public PercentageDiscountStrategy(BigDecimal rate) {
+        if (rate.scale() < 0 || rate.scale() > 18) {
+            throw new IllegalArgumentException("Unsupported rate: " + rate);
+        }
+        this.rate = rate;
+        this.rateUnscaled = rate.unscaledValue().longValueExact();
+        this.rateDivisor = BigDecimal.ONE.movePointRight(rate.scale()).longValueExact();
+    }
+
+    @Override
+    public BigDecimal getDiscount(BigDecimal total) {
+        return total.multiply(rate).setScale(2, RoundingMode.DOWN);
+    }
+
+    // 把金额拆成 q × 10^scale + r,分别乘以rate后相加,不会溢出中间结果;
+    // q和r符号相同,整数除法向0截断,和RoundingMode.DOWN相同:
+    @Override
+    public long getDiscountCents(long totalCents) {
+        long q = totalCents / rateDivisor;
+        long r = totalCents % rateDivisor;
+        return Math.addExact(Math.multiplyExact(q, rateUnscaled), Math.multiplyExact(r, rateUnscaled) / rateDivisor);
+    }
 }
-class UserDiscountStrategy implements DiscountStrategy {
+
+//先计算first的折扣,再对剩下的金额计算second的折扣,两者相加
+class ChainedDiscountStrategy implements DiscountStrategy {
+    private final DiscountStrategy first;
+    private final DiscountStrategy second;
+
+    public ChainedDiscountStrategy(DiscountStrategy first, DiscountStrategy second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
     public BigDecimal getDiscount(BigDecimal total) {
-        // 普通会员打九折:
-        return total.multiply(new BigDecimal("0.1")).setScale(2, RoundingMode.DOWN);
+        BigDecimal discount = first.getDiscount(total);
+        return discount.add(second.getDiscount(total.subtract(discount)));
+    }
+
+    @Override
+    public long getDiscountCents(long totalCents) {
+        long discount = first.getDiscountCents(totalCents);
+        return Math.addExact(discount, second.getDiscountCents(Math.subtractExact(totalCents, discount)));
+    }
+}
+
+class UserDiscountStrategy extends PercentageDiscountStrategy {
+    // 普通会员打九折:
+    public UserDiscountStrategy() {
+        super(new BigDecimal("0.1"));
     }
 }
 class OverDiscountStrategy implements DiscountStrategy {
+    private static final BigDecimal THRESHOLD = BigDecimal.valueOf(100);
+    private static final BigDecimal DISCOUNT = BigDecimal.valueOf(20);
+
     public BigDecimal getDiscount(BigDecimal total) {
         // 满100减20优惠:
-        return total.compareTo(BigDecimal.valueOf(100)) >= 0 ? BigDecimal.valueOf(20) : BigDecimal.ZERO;
+        return total.compareTo(THRESHOLD) >= 0 ? DISCOUNT : BigDecimal.ZERO;
+    }
+
+    @Override
+    public long getDiscountCents(long totalCents) {
+        return totalCents >= 100_00 ? 20_00 : 0;
+    }
+}
+class PrimeDiscountStrategy extends ChainedDiscountStrategy {
+    // Prime会员先满减,再对剩余金额打七折.
+    // 比例用字符串"0.3"创建,是精确的0.3,而不是new BigDecimal(0.3)得到的0.29999999999999998889...:
+    public PrimeDiscountStrategy() {
+        super(new OverDiscountStrategy(), new PercentageDiscountStrategy(new BigDecimal("0.3")));
     }
 }
-class PrimeDiscountStrategy implements DiscountStrategy{
+
+//记住每个金额的折扣,重复的金额直接返回之前的结果,不再计算也不分配对象.
+// 最多记住maxEntries个不同的金额,之后新的金额照常计算但不再记住
+class MemoizingDiscountStrategy implements DiscountStrategy {
+    private final DiscountStrategy strategy;
+    private final int maxEntries;
+    private final ConcurrentHashMap<BigDecimal, BigDecimal> discounts = new ConcurrentHashMap<>();
+
+    public MemoizingDiscountStrategy(DiscountStrategy strategy, int maxEntries) {
+        this.strategy = strategy;
+        this.maxEntries = maxEntries;
+    }
+
+    // 按BigDecimal.equals()比较,105和105.00分别记住,结果和直接计算完全相同:
     @Override
     public BigDecimal getDiscount(BigDecimal total) {
-        BigDecimal bigDecimal=new OverDiscountStrategy().getDiscount(total);
-        return bigDecimal.add(total.subtract(bigDecimal).multiply(new BigDecimal(0.3)).setScale(2,RoundingMode.DOWN));
+        BigDecimal discount = discounts.get(total);
+        if (discount == null) {
+            discount = strategy.getDiscount(total);
+            if (discounts.size() < maxEntries) {
+                discounts.putIfAbsent(total, discount);
+            }
+        }
+        return discount;
+    }
+
+    // 整数计算本身不分配对象,不需要记住:
+    @Override
+    public long getDiscountCents(long totalCents) {
+        return strategy.getDiscountCents(totalCents);
+    }
+}
+
+//比较三种策略每次计算折扣分配的字节数和耗时:BigDecimal计算、记住结果后的BigDecimal计算、以分为单位的整数计算
+class DiscountAllocationBenchmark {
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        // 订单金额大多重复:
+        BigDecimal[] totals = new BigDecimal[1000];
+        long[] totalCents = new long[totals.length];
+        for (int i = 0; i < totals.length; i++) {
+            totalCents[i] = 50_00 + i * 17;
+            totals[i] = BigDecimal.valueOf(totalCents[i], 2);
+        }
+        DiscountStrategy[] strategies = {new UserDiscountStrategy(), new OverDiscountStrategy(), new PrimeDiscountStrategy()};
+        for (int round = 0; round < 3; round++) {
+            for (DiscountStrategy strategy : strategies) {
+                DiscountStrategy memoizing = new MemoizingDiscountStrategy(strategy, 10_000);
+                String name = strategy.getClass().getSimpleName();
+                long before = AllocationCounter.allocatedBytes();
+                long start = System.nanoTime();
+                int checksum = 0;
+                for (int i = 0; i < iterations; i++) {
+                    checksum += strategy.getDiscount(totals[i % totals.length]).signum();
+                }
+                report(name + " BigDecimal", iterations, start, before, checksum);
+
+                before = AllocationCounter.allocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    checksum += memoizing.getDiscount(totals[i % totals.length]).signum();
+                }
+                report(name + " memoized", iterations, start, before, checksum);
+
+                before = AllocationCounter.allocatedBytes();
+                start = System.nanoTime();
+                long sum = 0;
+                for (int i = 0; i < iterations; i++) {
+                    sum += strategy.getDiscountCents(totalCents[i % totalCents.length]);
+                }
+                report(name + " cents", iterations, start, before, sum);
+            }
+        }
+    }
+
+    private static void report(String label, int iterations, long start, long allocatedBefore, long checksum) {
+        long elapsed = System.nanoTime() - start;
+        long allocated = AllocationCounter.allocatedBytes() - allocatedBefore;
+        System.out.printf("%-40s %.1fns/call, %.1f bytes/call (checksum %d)%n", label,
+                (double) elapsed / iterations, (double) allocated / iterations, checksum);
     }
 }
 class DiscountContext {
@@ -627,6 +837,77 @@ class DiscountContext {
     public BigDecimal calculatePrice(BigDecimal total) {
         return total.subtract(this.strategy.getDiscount(total)).setScale(2);
     }
+
+    // 批量计算,金额都以分为单位,结果和calculatePrice()逐个计算完全一致:
+    public void calculatePrices(long[] totalCents, long[] priceCents) {
+        checkBatch(totalCents, priceCents);
+        DiscountStrategy strategy = this.strategy;
+        for (int i = 0; i < totalCents.length; i++) {
+            priceCents[i] = Math.subtractExact(totalCents[i], strategy.getDiscountCents(totalCents[i]));
+        }
+    }
+
+    // 和calculatePrices()相同,在ForkJoinPool.commonPool()中并行计算:
+    public void calculatePricesParallel(long[] totalCents, long[] priceCents) {
+        checkBatch(totalCents, priceCents);
+        DiscountStrategy strategy = this.strategy;
+        Arrays.parallelSetAll(priceCents, i -> Math.subtractExact(totalCents[i], strategy.getDiscountCents(totalCents[i])));
+    }
+
+    private static void checkBatch(long[] totalCents, long[] priceCents) {
+        if (totalCents.length != priceCents.length) {
+            throw new IllegalArgumentException("Length mismatch: " + totalCents.length + " totals, " + priceCents.length + " prices");
+        }
+    }
+}
+
+//用随机金额和边界值逐个比较批量整数计算和BigDecimal计算的结果,有任何不一致时以非0状态退出;之后比较两者的耗时
+class BatchPricingCheck {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        long[] totals = new long[n];
+        long[] edges = {0, 1, -1, 9, 10, 11, 99_99, 100_00, 100_01, 20_00, 20_01, 19_99, -100_00,
+                Long.MAX_VALUE / 1000, -Long.MAX_VALUE / 1000};
+        for (int i = 0; i < n; i++) {
+            if (i < edges.length) {
+                totals[i] = edges[i];
+            } else if (i % 3 == 0) {
+                // 大金额,覆盖按比例计算时拆分的商和余数:
+                totals[i] = random.nextLong() / 1000;
+            } else {
+                totals[i] = random.nextInt(1_000_000_00) - 1_000_00;
+            }
+        }
+        DiscountStrategy[] strategies = {new UserDiscountStrategy(), new OverDiscountStrategy(), new PrimeDiscountStrategy()};
+        long[] prices = new long[n];
+        int mismatches = 0;
+        for (DiscountStrategy strategy : strategies) {
+            DiscountContext ctx = new DiscountContext();
+            ctx.setStrategy(strategy);
+            long start = System.nanoTime();
+            ctx.calculatePricesParallel(totals, prices);
+            long batchNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                BigDecimal expected = ctx.calculatePrice(BigDecimal.valueOf(totals[i], 2));
+                if (!expected.equals(BigDecimal.valueOf(prices[i], 2))) {
+                    if (mismatches++ < 10) {
+                        System.out.println(strategy.getClass().getSimpleName() + " mismatch for " + totals[i]
+                                + ": expected " + expected + ", got " + BigDecimal.valueOf(prices[i], 2));
+                    }
+                }
+            }
+            long bigDecimalNanos = System.nanoTime() - start;
+            System.out.printf("%s: %d totals, batch=%dms, BigDecimal=%dms%n", strategy.getClass().getSimpleName(), n,
+                    TimeUnit.NANOSECONDS.toMillis(batchNanos), TimeUnit.NANOSECONDS.toMillis(bigDecimalNanos));
+        }
+        System.out.println("seed=" + seed + ", mismatches=" + mismatches);
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
 }
 
 
@@ -686,7 +967,8 @@ class BotContext {
  */
 class Product {
     private final String name;
-    private double price;
+    // volatile保证多个线程改价时读到的是完整的最新价格,不需要加锁:
+    private volatile double price;
 
     public Product(String name, double price) {
         this.name = name;
@@ -697,6 +979,10 @@ class Product {
         return this.name;
     }
 
+    public double getPrice() {
+        return this.price;
+    }
+
     public void setPrice(double price) {
         this.price = price;
     }
@@ -713,736 +999,9364 @@ class ProductObserver {
 }
 
 //Store不能直接引用Customer和Admin，相反，它引用一个ProductObserver接口，
-// 任何人想要观察Store，只要实现该接口，并且把自己注册到Store即可
+// 任何人想要观察Store，只要实现该接口，并且把自己注册到Store即可.
+// 可以被多个线程同时调用,同一个商品的并发改价以最后写入的价格为准
 class Store {
-    private final List<ProductObserver> observers = new ArrayList<>();
-    private final Map<String, Product> products = new HashMap<>();
+    // 商品的存储方式由catalog决定:
+    private final ProductCatalog products;
+    // 观察者由dispatcher保存,通知的方式(同步、异步)由dispatcher决定:
+    private final ProductEventDispatcher dispatcher;
+    // 价格日志,为null时不记录:
+    private final PriceJournal journal;
+    // 按价格排序的索引,为null时不维护:
+    private volatile PriceIndex priceIndex;
+    // 维护索引时,同一个商品的改价和索引更新必须一起完成,按商品名分段加锁:
+    private final ReentrantLock[] indexLocks = newLocks(64);
 
-    // 注册观察者:
-    public void addObserver(ProductObserver observer) {
-        this.observers.add(observer);
+    public Store() {
+        this(new SyncDispatcher());
     }
 
-    // 取消注册:
-    public void removeObserver(ProductObserver observer) {
-        this.observers.remove(observer);
+    public Store(ProductEventDispatcher dispatcher) {
+        this(dispatcher, new MapProductCatalog());
     }
 
-    public void addNewProduct(String name, double price) {
-        Product p = new Product(name, price);
-        products.put(p.getName(), p);
-        // 通知观察者:
-        observers.forEach(o -> o.onPublished(p));
+    public Store(ProductEventDispatcher dispatcher, ProductCatalog products) {
+        this.dispatcher = dispatcher;
+        this.products = products;
+        this.journal = null;
     }
 
-    public void setProductPrice(String name, double price) {
-        Product p = products.get(name);
-        p.setPrice(price);
-        // 通知观察者:
-        observers.forEach(o -> o.onPriceChanged(p));
+    public Store(ProductEventDispatcher dispatcher, PriceJournal journal) throws IOException {
+        this(dispatcher, new MapProductCatalog(), journal);
     }
-}
 
-class Admin extends ProductObserver {
+    // 先从快照和日志恢复商品(不通知观察者),之后的每次变更都写入日志:
+    public Store(ProductEventDispatcher dispatcher, ProductCatalog products, PriceJournal journal) throws IOException {
+        this.dispatcher = dispatcher;
+        this.products = products;
+        this.journal = journal;
+        journal.open(products::put, products::products);
+    }
 
-}
+    private static ReentrantLock[] newLocks(int n) {
+        ReentrantLock[] locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
 
-class Customer extends ProductObserver {
+    private ReentrantLock indexLock(String name) {
+        int h = name.hashCode();
+        return indexLocks[(h ^ (h >>> 16)) & (indexLocks.length - 1)];
+    }
 
-}
+    // 开始维护价格索引,并加入已有的商品.必须在Store被多个线程使用之前调用:
+    public Store enablePriceIndex() {
+        PriceIndex index = new PriceIndex();
+        for (Product p : products.products()) {
+            index.add(p.getName(), p.getPrice());
+        }
+        this.priceIndex = index;
+        return this;
+    }
 
-/**
- * 中介：Mediator
- */
-class OrderFrame extends JFrame {
-    public OrderFrame(String... names) {
-        setTitle("Order");
-        setSize(460, 200);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        Container c = getContentPane();
-        c.setLayout(new FlowLayout(FlowLayout.LEADING, 20, 20));
-        c.add(new JLabel("Use Mediator Pattern"));
-        List<JCheckBox> checkboxList = addCheckBox(names);
-        JButton selectAll = addButton("Select All");
-        JButton selectNone = addButton("Select None");
-        selectNone.setEnabled(false);
-        JButton selectInverse = addButton("Inverse Select");
-        new Mediator(checkboxList, selectAll, selectNone, selectInverse);
-        setVisible(true);
+    // 价格在[minPrice, maxPrice]之间的商品,按价格和名字排序:
+    public List<Product> findByPriceRange(double minPrice, double maxPrice) {
+        return toProducts(requirePriceIndex().range(minPrice, maxPrice), Integer.MAX_VALUE);
     }
 
-    private List<JCheckBox> addCheckBox(String... names) {
-        JPanel panel = new JPanel();
-        panel.add(new JLabel("Menu:"));
-        List<JCheckBox> list = new ArrayList<>();
-        for (String name : names) {
-            JCheckBox checkbox = new JCheckBox(name);
-            list.add(checkbox);
-            panel.add(checkbox);
-        }
-        getContentPane().add(panel);
-        return list;
+    // 由子树大小计算,O(log n),与范围内的商品数量无关:
+    public int countByPriceRange(double minPrice, double maxPrice) {
+        return requirePriceIndex().count(minPrice, maxPrice);
     }
 
-    private JButton addButton(String label) {
-        JButton button = new JButton(label);
-        getContentPane().add(button);
-        return button;
+    // 最便宜的n个商品:
+    public List<Product> cheapest(int n) {
+        return toProducts(requirePriceIndex().first(n), n);
     }
-}
 
-//引用4个UI组件，并负责跟它们交互
-class Mediator {
-    // 引用UI组件:
-    private final List<JCheckBox> checkBoxList;
-    private final JButton selectAll;
-    private final JButton selectNone;
-    private final JButton selectInverse;
+    // 最贵的n个商品:
+    public List<Product> mostExpensive(int n) {
+        return toProducts(requirePriceIndex().last(n), n);
+    }
 
-    public Mediator(List<JCheckBox> checkBoxList, JButton selectAll, JButton selectNone, JButton selectInverse) {
-        this.checkBoxList = checkBoxList;
-        this.selectAll = selectAll;
-        this.selectNone = selectNone;
-        this.selectInverse = selectInverse;
-        this.checkBoxList.forEach(checkBox -> {
-            checkBox.addChangeListener(this::onCheckBoxChanged);
-        });
-        this.selectAll.addActionListener(this::onSelectAllClicked);
-        this.selectNone.addActionListener(this::onSelectNoneClicked);
-        this.selectInverse.addActionListener(this::onSelectInverseClicked);
+    private PriceIndex requirePriceIndex() {
+        PriceIndex index = priceIndex;
+        if (index == null) {
+            throw new IllegalStateException("Price index is not enabled");
+        }
+        return index;
     }
 
-    public void onCheckBoxChanged(ChangeEvent event) {
-        boolean allChecked = true;
-        boolean allUnchecked = true;
-        for (var checkBox : checkBoxList) {
-            if (checkBox.isSelected()) {
-                allUnchecked = false;
-            } else {
-                allChecked = false;
+    private List<Product> toProducts(Iterable<PriceIndex.Entry> entries, int limit) {
+        List<Product> result = new ArrayList<>();
+        for (PriceIndex.Entry e : entries) {
+            if (result.size() >= limit) {
+                break;
+            }
+            Product p = products.get(e.name);
+            if (p != null) {
+                result.add(p);
             }
         }
-        selectAll.setEnabled(!allChecked);
-        selectNone.setEnabled(!allUnchecked);
+        return result;
     }
 
-    public void onSelectAllClicked(ActionEvent event) {
-        checkBoxList.forEach(checkBox -> checkBox.setSelected(true));
-        selectAll.setEnabled(false);
-        selectNone.setEnabled(true);
+    public Product getProduct(String name) {
+        return products.get(name);
     }
 
-    public void onSelectNoneClicked(ActionEvent event) {
-        checkBoxList.forEach(checkBox -> checkBox.setSelected(false));
-        selectAll.setEnabled(true);
-        selectNone.setEnabled(false);
+    public int getProductCount() {
+        return products.size();
     }
 
-    public void onSelectInverseClicked(ActionEvent event) {
-        checkBoxList.forEach(checkBox -> checkBox.setSelected(!checkBox.isSelected()));
-        onCheckBoxChanged(null);
+    public Collection<Product> getProducts() {
+        return products.products();
     }
-}
 
-/**
- * 迭代器：Iterator
- */
-class ReverseArrayCollection<T> implements Iterable<T> {
-    private final T[] array;
+    // 停止写日志,并把日志中尚未落盘的部分写入磁盘:
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
 
-    public ReverseArrayCollection(T... objs) {
-        this.array = Arrays.copyOfRange(objs, 0, objs.length);
+    // 注册观察者:
+    public void addObserver(ProductObserver observer) {
+        dispatcher.addObserver(observer);
     }
 
-    public Iterator<T> iterator() {
-        return new ReverseIterator();
+    // 取消注册:
+    public void removeObserver(ProductObserver observer) {
+        dispatcher.removeObserver(observer);
     }
 
-    //使用内部类的好处是内部类隐含地持有一个它所在对象的this引用，可以通过ReverseArrayCollection.this引用到它所在的集合。
-    class ReverseIterator implements Iterator<T> {
-        // 索引位置:
-        int index;
+    public void addNewProduct(String name, double price) {
+        Product p;
+        PriceIndex index = priceIndex;
+        if (index == null) {
+            p = products.put(name, price);
+        } else {
+            ReentrantLock lock = indexLock(name);
+            lock.lock();
+            try {
+                // 同名商品被替换时把旧的索引项移到新价格:
+                Product old = products.get(name);
+                p = products.put(name, price);
+                if (old != null) {
+                    index.move(name, old.getPrice(), price);
+                } else {
+                    index.add(name, price);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        // 先更新内存再写日志,快照不会漏掉已经写入旧日志的变更:
+        if (journal != null) {
+            journal.append(p);
+        }
+        // 通知观察者:
+        dispatcher.published(p);
+    }
 
-        public ReverseIterator() {
-            // 创建Iterator时,索引在数组末尾:
-            this.index = ReverseArrayCollection.this.array.length;
+    public void setProductPrice(String name, double price) {
+        Product p;
+        PriceIndex index = priceIndex;
+        if (index == null) {
+            p = products.setPrice(name, price);
+        } else {
+            ReentrantLock lock = indexLock(name);
+            lock.lock();
+            try {
+                Product old = products.get(name);
+                if (old != null) {
+                    double oldPrice = old.getPrice();
+                    p = products.setPrice(name, price);
+                    index.move(name, oldPrice, price);
+                } else {
+                    p = null;
+                }
+            } finally {
+                lock.unlock();
+            }
         }
+        if (p == null) {
+            throw new IllegalArgumentException("Unknown product: " + name);
+        }
+        if (journal != null) {
+            journal.append(p);
+        }
+        // 通知观察者:
+        dispatcher.priceChanged(p);
+    }
+}
 
-        public boolean hasNext() {
-            // 如果索引大于0,那么可以移动到下一个元素(倒序往前移动):
-            return index > 0;
+//按价格、再按名字排序的商品索引.基于每个节点记录子树大小的Treap(随机优先级的平衡二叉搜索树),
+// 更新和计数都是O(log n),范围查询和前n个是O(log n + k).
+// 读写锁保护整棵树:查询之间不互相阻塞,更新时短暂独占.改价用move()在一次独占中完成移除和加入,
+// 查询不会看到商品暂时不在索引中;同一个商品的改价和索引更新由Store按商品名分段加锁保证一起完成
+class PriceIndex {
+    static final class Entry implements Comparable<Entry> {
+        final double price;
+        // null表示该价格下排在所有名字之前,用作范围查询的边界:
+        final String name;
+
+        Entry(double price, String name) {
+            this.price = price;
+            this.name = name;
         }
 
-        public T next() {
-            // 将索引移动到下一个元素并返回(倒序往前移动):
-            index--;
-            return array[index];
+        @Override
+        public int compareTo(Entry other) {
+            int c = Double.compare(price, other.price);
+            if (c != 0) {
+                return c;
+            }
+            if (name == null || other.name == null) {
+                return name == null ? (other.name == null ? 0 : -1) : 1;
+            }
+            return name.compareTo(other.name);
         }
     }
-}
 
-/**
- * 代理:Proxy
- */
-//对Connection接口做一个抽象的代理类,把Connection接口定义的方法全部实现一遍，因为Connection接口定义的方法太多了，
-// 后面我们要编写的LazyConnectionProxy只需要继承AbstractConnectionProxy，就不必再把Connection接口方法挨个实现一遍
-abstract class AbstractConnectionProxy implements Connection {
+    private static final class Node {
+        final Entry entry;
+        final int priority;
+        Node left;
+        Node right;
+        // 以该节点为根的子树中的索引项个数:
+        int size = 1;
 
-    public AbstractConnectionProxy() {
-        super();
+        Node(Entry entry, int priority) {
+            this.entry = entry;
+            this.priority = priority;
+        }
     }
 
-    // 抽象方法获取实际的Connection:
-    protected abstract Connection getRealConnection();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root;
 
-    // 实现Connection接口的每一个方法:
-    public Statement createStatement() throws SQLException {
-        return getRealConnection().createStatement();
+    void add(String name, double price) {
+        Node node = new Node(new Entry(price, name), ThreadLocalRandom.current().nextInt());
+        lock.writeLock().lock();
+        try {
+            root = insert(root, node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String name, double price) {
+        Entry entry = new Entry(price, name);
+        lock.writeLock().lock();
+        try {
+            root = delete(root, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 把商品从旧价格移到新价格.新节点在锁外创建,独占期间只做两次O(log n)的树操作:
+    void move(String name, double oldPrice, double newPrice) {
+        Entry old = new Entry(oldPrice, name);
+        Node node = new Node(new Entry(newPrice, name), ThreadLocalRandom.current().nextInt());
+        lock.writeLock().lock();
+        try {
+            root = insert(delete(root, old), node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 价格在[minPrice, maxPrice]之间的索引项个数,不遍历这些索引项:
+    int count(double minPrice, double maxPrice) {
+        if (minPrice > maxPrice) {
+            return 0;
+        }
+        lock.readLock().lock();
+        try {
+            return rank(upperBound(maxPrice)) - rank(new Entry(minPrice, null));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 价格在[minPrice, maxPrice]之间的索引项,按价格和名字排序:
+    List<Entry> range(double minPrice, double maxPrice) {
+        List<Entry> result = new ArrayList<>();
+        if (minPrice <= maxPrice) {
+            lock.readLock().lock();
+            try {
+                collect(root, new Entry(minPrice, null), upperBound(maxPrice), result);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return result;
+    }
+
+    // 价格最低的n个索引项:
+    List<Entry> first(int n) {
+        List<Entry> result = new ArrayList<>(Math.min(n, 1024));
+        lock.readLock().lock();
+        try {
+            ascending(root, n, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // 价格最高的n个索引项,从高到低:
+    List<Entry> last(int n) {
+        List<Entry> result = new ArrayList<>(Math.min(n, 1024));
+        lock.readLock().lock();
+        try {
+            descending(root, n, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    // 排在价格maxPrice的所有索引项之后的边界:
+    private static Entry upperBound(double maxPrice) {
+        return new Entry(Math.nextUp(maxPrice), null);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static Node update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        return node;
+    }
+
+    // 按键插入,再把优先级更高的节点向上旋转:
+    private static Node insert(Node node, Node added) {
+        if (node == null) {
+            return added;
+        }
+        int c = added.entry.compareTo(node.entry);
+        if (c == 0) {
+            return node;
+        }
+        if (c < 0) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority) {
+                Node left = node.left;
+                node.left = left.right;
+                left.right = update(node);
+                return update(left);
+            }
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority) {
+                Node right = node.right;
+                node.right = right.left;
+                right.left = update(node);
+                return update(right);
+            }
+        }
+        return update(node);
+    }
+
+    private static Node delete(Node node, Entry entry) {
+        if (node == null) {
+            return null;
+        }
+        int c = entry.compareTo(node.entry);
+        if (c == 0) {
+            return merge(node.left, node.right);
+        }
+        if (c < 0) {
+            node.left = delete(node.left, entry);
+        } else {
+            node.right = delete(node.right, entry);
+        }
+        return update(node);
+    }
+
+    // left中的索引项全部小于right:
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    // 小于entry的索引项个数,沿一条路径向下累加左子树的大小:
+    private int rank(Entry entry) {
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            if (entry.compareTo(node.entry) <= 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    // 按顺序收集[lower, upper)之间的索引项,跳过整棵在范围外的子树:
+    private static void collect(Node node, Entry lower, Entry upper, List<Entry> result) {
+        while (node != null) {
+            if (node.entry.compareTo(lower) < 0) {
+                node = node.right;
+            } else if (node.entry.compareTo(upper) >= 0) {
+                node = node.left;
+            } else {
+                collect(node.left, lower, upper, result);
+                result.add(node.entry);
+                node = node.right;
+            }
+        }
+    }
+
+    private static void ascending(Node node, int n, List<Entry> result) {
+        while (node != null && result.size() < n) {
+            ascending(node.left, n, result);
+            if (result.size() >= n) {
+                return;
+            }
+            result.add(node.entry);
+            node = node.right;
+        }
+    }
+
+    private static void descending(Node node, int n, List<Entry> result) {
+        while (node != null && result.size() < n) {
+            descending(node.right, n, result);
+            if (result.size() >= n) {
+                return;
+            }
+            result.add(node.entry);
+            node = node.left;
+        }
+    }
+}
+
+//Store中商品的存储,必须可以被多个线程同时访问
+interface ProductCatalog {
+    // 新增商品,同名商品已存在时替换它;返回用于通知观察者的Product:
+    Product put(String name, double price);
+
+    // 修改价格,商品不存在时返回null:
+    Product setPrice(String name, double price);
+
+    Product get(String name);
+
+    int size();
+
+    // 只读的全部商品:
+    Collection<Product> products();
+}
+
+//每个商品一个Product对象,保存在ConcurrentHashMap中
+class MapProductCatalog implements ProductCatalog {
+    private final Map<String, Product> products = new ConcurrentHashMap<>();
+
+    @Override
+    public Product put(String name, double price) {
+        Product p = new Product(name, price);
+        products.put(name, p);
+        return p;
+    }
+
+    @Override
+    public Product setPrice(String name, double price) {
+        Product p = products.get(name);
+        if (p != null) {
+            p.setPrice(price);
+        }
+        return p;
+    }
+
+    @Override
+    public Product get(String name) {
+        return products.get(name);
+    }
+
+    @Override
+    public int size() {
+        return products.size();
+    }
+
+    @Override
+    public Collection<Product> products() {
+        return Collections.unmodifiableCollection(products.values());
+    }
+}
+
+//紧凑的商品目录:名字以UTF-8连续存放在一个byte数组中,价格按块存放在AtomicLongArray中,
+// 用线性探测的int数组按名字找到行号.每个商品只占几十个字节,Product只在需要时作为视图创建.
+// 查找不加锁:读取volatile的table,行号小于table.size时该行的数据一定已经可见;新增商品和扩容时加锁.
+// 价格块创建后不再移动,扩容时不复制价格,扩容期间的改价不会丢失
+class CompactProductCatalog implements ProductCatalog {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Table table = new Table(16, 16 * 16);
+    // 在增加table.size之前追加价格块,行号小于size的价格块一定可见:
+    private volatile AtomicLongArray[] prices = new AtomicLongArray[0];
+
+    private static final class Table {
+        // 行号+1,0表示空:
+        final int[] index;
+        final int[] hashes;
+        // 第row个名字是names[nameOffsets[row], nameOffsets[row + 1]):
+        final int[] nameOffsets;
+        final byte[] names;
+        // 已经写完的行数,写入每一行的数据后才增加:
+        volatile int size;
+
+        Table(int rows, int nameBytes) {
+            this.index = new int[rows * 2];
+            this.hashes = new int[rows];
+            this.nameOffsets = new int[rows + 1];
+            this.names = new byte[nameBytes];
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    // 返回行号,不存在时返回-1:
+    private static int find(Table t, String name, int hash) {
+        int size = t.size;
+        int[] index = t.index;
+        int mask = index.length - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            int row = index[i] - 1;
+            if (row < 0) {
+                return -1;
+            }
+            if (row < size && t.hashes[row] == hash && nameEquals(t, row, name)) {
+                return row;
+            }
+        }
+    }
+
+    private static boolean nameEquals(Table t, int row, String name) {
+        int start = t.nameOffsets[row];
+        int length = t.nameOffsets[row + 1] - start;
+        if (length == name.length()) {
+            // 字节数等于字符数时只可能全是ASCII,直接逐个比较:
+            for (int i = 0; i < length; i++) {
+                if (t.names[start + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return utf8.length == length && Arrays.equals(t.names, start, start + length, utf8, 0, length);
+    }
+
+    // 锁内再找一次,没有找到说明商品确实不存在:
+    private int findLocked(String name) {
+        Table t = table;
+        int row = find(t, name, name.hashCode());
+        if (row >= 0) {
+            return row;
+        }
+        lock.lock();
+        try {
+            return find(table, name, name.hashCode());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    double getPrice(int row) {
+        return Double.longBitsToDouble(prices[row >>> CHUNK_BITS].get(row & (CHUNK_SIZE - 1)));
+    }
+
+    void setPrice(int row, double price) {
+        prices[row >>> CHUNK_BITS].set(row & (CHUNK_SIZE - 1), Double.doubleToRawLongBits(price));
+    }
+
+    @Override
+    public Product put(String name, double price) {
+        Table t = table;
+        int hash = name.hashCode();
+        int row = find(t, name, hash);
+        if (row < 0) {
+            lock.lock();
+            try {
+                t = table;
+                row = find(t, name, hash);
+                if (row < 0) {
+                    row = append(name, hash, price);
+                    return new CatalogProduct(this, name, row);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        setPrice(row, price);
+        return new CatalogProduct(this, name, row);
+    }
+
+    // 持有lock时调用:
+    private int append(String name, int hash, double price) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        Table t = table;
+        int row = t.size;
+        int nameStart = t.nameOffsets[row];
+        if (row == t.hashes.length || nameStart + utf8.length > t.names.length) {
+            t = grow(t, utf8.length);
+        }
+        if (row >>> CHUNK_BITS >= prices.length) {
+            AtomicLongArray[] grown = Arrays.copyOf(prices, (row >>> CHUNK_BITS) + 1);
+            grown[row >>> CHUNK_BITS] = new AtomicLongArray(CHUNK_SIZE);
+            prices = grown;
+        }
+        System.arraycopy(utf8, 0, t.names, nameStart, utf8.length);
+        t.nameOffsets[row + 1] = nameStart + utf8.length;
+        t.hashes[row] = hash;
+        setPrice(row, price);
+        // 先发布行数据,再写入索引:
+        t.size = row + 1;
+        int[] index = t.index;
+        int mask = index.length - 1;
+        int i = spread(hash) & mask;
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = row + 1;
+        table = t;
+        return row;
+    }
+
+    private Table grow(Table t, int extraNameBytes) {
+        int rows = t.size == t.hashes.length ? t.hashes.length * 2 : t.hashes.length;
+        int nameBytes = t.names.length;
+        while (t.nameOffsets[t.size] + extraNameBytes > nameBytes) {
+            nameBytes *= 2;
+        }
+        Table n = new Table(rows, nameBytes);
+        int size = t.size;
+        System.arraycopy(t.hashes, 0, n.hashes, 0, size);
+        System.arraycopy(t.nameOffsets, 0, n.nameOffsets, 0, size + 1);
+        System.arraycopy(t.names, 0, n.names, 0, t.nameOffsets[size]);
+        int mask = n.index.length - 1;
+        for (int row = 0; row < size; row++) {
+            int i = spread(n.hashes[row]) & mask;
+            while (n.index[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            n.index[i] = row + 1;
+        }
+        n.size = size;
+        table = n;
+        return n;
+    }
+
+    @Override
+    public Product setPrice(String name, double price) {
+        int row = findLocked(name);
+        if (row < 0) {
+            return null;
+        }
+        setPrice(row, price);
+        return new CatalogProduct(this, name, row);
+    }
+
+    @Override
+    public Product get(String name) {
+        int row = findLocked(name);
+        return row < 0 ? null : new CatalogProduct(this, name, row);
+    }
+
+    @Override
+    public int size() {
+        return table.size;
+    }
+
+    @Override
+    public Collection<Product> products() {
+        Table t = table;
+        int size = t.size;
+        return new AbstractCollection<Product>() {
+            @Override
+            public Iterator<Product> iterator() {
+                return new Iterator<Product>() {
+                    private int row = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return row < size;
+                    }
+
+                    @Override
+                    public Product next() {
+                        if (row >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        int start = t.nameOffsets[row];
+                        String name = new String(t.names, start, t.nameOffsets[row + 1] - start, StandardCharsets.UTF_8);
+                        return new CatalogProduct(CompactProductCatalog.this, name, row++);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
+
+//CompactProductCatalog中一个商品的视图,价格直接读写目录中的数据
+class CatalogProduct extends Product {
+    private final CompactProductCatalog catalog;
+    private final int row;
+
+    CatalogProduct(CompactProductCatalog catalog, String name, int row) {
+        super(name, 0);
+        this.catalog = catalog;
+        this.row = row;
+    }
+
+    @Override
+    public double getPrice() {
+        return catalog.getPrice(row);
+    }
+
+    @Override
+    public void setPrice(double price) {
+        catalog.setPrice(row, price);
+    }
+}
+
+//比较MapProductCatalog和CompactProductCatalog保存n个商品占用的堆内存
+class ProductCatalogBenchmark {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+        measure("MapProductCatalog", new MapProductCatalog(), n);
+        measure("CompactProductCatalog", new CompactProductCatalog(), n);
+    }
+
+    private static void measure(String label, ProductCatalog catalog, int n) {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long base = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            catalog.put("product-" + i, i);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory() - base;
+        System.out.printf("%s: %d products, heap=%dMB (%.1f bytes/product), put=%dms, check=%s%n", label, catalog.size(),
+                used >> 20, (double) used / n, TimeUnit.NANOSECONDS.toMillis(elapsed), catalog.get("product-" + (n - 1)).getPrice());
+    }
+}
+
+//回放价格日志时每条记录的回调,价格不装箱
+interface PriceRecordHandler {
+    void apply(String name, double price);
+}
+
+//内存映射的只追加价格日志.
+// 每条记录是"某商品的价格为x",回放时后面的记录覆盖前面的,所以重复回放也不会出错.
+// 记录直接编码到映射的内存中,后台线程每隔flushIntervalMillis毫秒统一落盘一次(组提交),写入时不等待磁盘.
+// 日志按商品名分成stripes段,每段一个文件和一把锁,不同商品的改价大多不会争用同一把锁;
+// 同一个商品总是写入同一段,段内的顺序就是它的改价顺序,各段之间不需要按顺序回放.
+// 定期生成快照:先把所有段切换到新一代日志,再把当前全部商品写入对应这一代的快照,之后删除旧的日志和快照.
+// 切换后仍写入旧日志的变更在切换前已经更新了内存,一定会出现在快照中.
+// 目录中的文件: journal-<代>-<段>.log, snapshot-<代>.dat;恢复时读取最新的快照,再按顺序回放不早于它的日志,
+// 回放过日志时立即生成一次快照,重启多次也不会留下越来越多的日志文件
+class PriceJournal implements AutoCloseable {
+    private static final int DEFAULT_STRIPES = 8;
+
+    //一段日志:当前的写入文件,以及自上次落盘以来是否写过
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        // 只在持有lock时修改:
+        volatile JournalSegmentWriter writer;
+        volatile boolean dirty = false;
+    }
+
+    private final Path dir;
+    private final long snapshotIntervalMillis;
+    // 保护generation、closed和切换各段的日志文件,不在写入记录的路径上:
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Stripe[] stripes;
+    private final ScheduledExecutorService scheduler;
+    // 以下字段只在持有lock时修改:
+    private long generation;
+    private volatile boolean closed = false;
+
+    // snapshotIntervalMillis为0时不自动生成快照:
+    public PriceJournal(Path dir, long flushIntervalMillis, long snapshotIntervalMillis) {
+        this(dir, flushIntervalMillis, snapshotIntervalMillis, DEFAULT_STRIPES);
+    }
+
+    // stripes必须是2的幂:
+    public PriceJournal(Path dir, long flushIntervalMillis, long snapshotIntervalMillis, int stripes) {
+        if (flushIntervalMillis <= 0 || snapshotIntervalMillis < 0 || stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Invalid journal settings: flush=" + flushIntervalMillis
+                    + ", snapshot=" + snapshotIntervalMillis + ", stripes=" + stripes);
+        }
+        this.dir = dir;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "price-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // 恢复已有的数据,然后开始写新一代日志:
+    void open(PriceRecordHandler handler, Supplier<Collection<Product>> products) throws IOException {
+        Files.createDirectories(dir);
+        long snapshotGeneration = -1;
+        long lastGeneration = -1;
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("snapshot-") && name.endsWith(".dat")) {
+                    snapshotGeneration = Math.max(snapshotGeneration, generationOf(name, "snapshot-", ".dat"));
+                } else if (name.startsWith("journal-") && name.endsWith(".log")) {
+                    journals.add(file);
+                    lastGeneration = Math.max(lastGeneration, generationOf(name, "journal-", ".log"));
+                }
+            }
+        }
+        if (snapshotGeneration >= 0) {
+            JournalSegmentWriter.read(snapshotFile(snapshotGeneration), handler);
+        }
+        // 按代回放,同一代中各段的商品互不相同,顺序无关:
+        journals.sort(Comparator.comparingLong(file -> generationOf(file.getFileName().toString(), "journal-", ".log")));
+        for (Path file : journals) {
+            if (generationOf(file.getFileName().toString(), "journal-", ".log") >= snapshotGeneration) {
+                JournalSegmentWriter.read(file, handler);
+            }
+        }
+        lock.lock();
+        try {
+            generation = Math.max(lastGeneration, snapshotGeneration) + 1;
+            JournalSegmentWriter[] writers = newWriters(generation);
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i].writer = writers[i];
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 把回放过的日志合并进新的快照,并删除它们:
+        if (!journals.isEmpty()) {
+            snapshot(products.get());
+        }
+        if (snapshotIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot(products.get());
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Price snapshot failed: " + e);
+                }
+            }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 文件名中的代,日志文件名中代后面还有段号:
+    private static long generationOf(String name, String prefix, String suffix) {
+        String g = name.substring(prefix.length(), name.length() - suffix.length());
+        int dash = g.indexOf('-');
+        return Long.parseLong(dash < 0 ? g : g.substring(0, dash));
+    }
+
+    private Path journalFile(long generation, int stripe) {
+        return dir.resolve("journal-" + generation + "-" + stripe + ".log");
+    }
+
+    private Path snapshotFile(long generation) {
+        return dir.resolve("snapshot-" + generation + ".dat");
+    }
+
+    // 创建一代日志的全部文件,并让它们的目录项落盘,之后落盘的记录在崩溃后一定能找到:
+    private JournalSegmentWriter[] newWriters(long generation) throws IOException {
+        JournalSegmentWriter[] writers = new JournalSegmentWriter[stripes.length];
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new JournalSegmentWriter(journalFile(generation, i));
+            }
+            forceDirectory();
+        } catch (IOException | RuntimeException e) {
+            for (JournalSegmentWriter w : writers) {
+                if (w != null) {
+                    w.close();
+                }
+            }
+            throw e;
+        }
+        return writers;
+    }
+
+    // 让目录中新建、改名的文件落盘:
+    private void forceDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Stripe stripe(String name) {
+        int h = name.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    // 在段的锁内读取价格:同一商品并发改价时,最后一条记录一定是最后写入的价格:
+    void append(Product p) {
+        String name = p.getName();
+        Stripe s = stripe(name);
+        s.lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Journal is closed");
+            }
+            s.writer.write(name, p.getPrice());
+            // 已经是true时不再写volatile字段:
+            if (!s.dirty) {
+                s.dirty = true;
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    // 组提交:把上次落盘之后的全部记录一次写入磁盘.
+    // 在定时任务中抛出异常会让后续的组提交全部停止,所以这里记录失败,下一个周期重试:
+    private void flush() {
+        for (Stripe s : stripes) {
+            if (!s.dirty) {
+                continue;
+            }
+            s.dirty = false;
+            JournalSegmentWriter w = s.writer;
+            try {
+                if (w != null) {
+                    w.force();
+                }
+            } catch (RuntimeException e) {
+                s.dirty = true;
+                System.err.println("Price journal flush failed, will retry: " + e);
+            }
+        }
+    }
+
+    // 切换到新一代日志并生成快照,完成后删除更早的日志和快照:
+    public void snapshot(Collection<Product> products) throws IOException {
+        JournalSegmentWriter[] old = new JournalSegmentWriter[stripes.length];
+        long g;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            g = generation + 1;
+            JournalSegmentWriter[] writers = newWriters(g);
+            generation = g;
+            // 每段只在切换的一瞬间加锁,写入其他段的线程不受影响:
+            for (int i = 0; i < stripes.length; i++) {
+                Stripe s = stripes[i];
+                s.lock.lock();
+                try {
+                    old[i] = s.writer;
+                    s.writer = writers[i];
+                } finally {
+                    s.lock.unlock();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (JournalSegmentWriter w : old) {
+            w.close();
+        }
+        Path tmp = dir.resolve("snapshot-" + g + ".tmp");
+        Files.deleteIfExists(tmp);
+        JournalSegmentWriter snapshot = new JournalSegmentWriter(tmp);
+        try {
+            for (Product p : products) {
+                snapshot.write(p.getName(), p.getPrice());
+            }
+        } finally {
+            snapshot.close();
+        }
+        // 快照完整写入后才出现在恢复时会读取的文件名下:
+        Files.move(tmp, snapshotFile(g), StandardCopyOption.ATOMIC_MOVE);
+        // 改名落盘之后才能删除旧文件,否则崩溃后可能既没有新快照也没有旧日志:
+        forceDirectory();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if ((name.startsWith("snapshot-") && name.endsWith(".dat") && generationOf(name, "snapshot-", ".dat") < g)
+                        || (name.startsWith("journal-") && name.endsWith(".log") && generationOf(name, "journal-", ".log") < g)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 在段的锁内关闭,正在写入的记录完成之后才关闭文件:
+        for (Stripe s : stripes) {
+            s.lock.lock();
+            try {
+                if (s.writer != null) {
+                    s.writer.close();
+                }
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+}
+
+//按段映射的日志文件.每条记录: 类型(1字节) 名字长度(2字节) UTF-8名字 价格(8字节).
+// 记录不跨段,段尾放不下时写一个PAD跳到下一段;映射时文件被零填充,读到类型0表示日志结束.
+// 类型字节最后写入,进程崩溃时不会读到写了一半的记录.正常关闭时截掉未使用的部分.
+// write()只由一个线程调用(PriceJournal持有这一段的锁),force()可以由其他线程调用
+class JournalSegmentWriter {
+    static final byte END = 0;
+    static final byte RECORD = 1;
+    static final byte PAD = 2;
+    static final int SEGMENT_SIZE = 64 << 20;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+
+    private final FileChannel channel;
+    // 切换段、落盘和关闭时加锁,保证其他线程force()时读到的是当前段,也不会在关闭之后落盘:
+    private final ReentrantLock lock = new ReentrantLock();
+    private MappedByteBuffer buffer;
+    private long segmentStart = 0;
+    private boolean closed = false;
+
+    JournalSegmentWriter(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+
+    void write(String name, double price) {
+        int nameBytes = utf8Length(name);
+        if (nameBytes > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Product name too long: " + nameBytes + " bytes");
+        }
+        int size = 1 + 2 + nameBytes + 8;
+        if (buffer.remaining() < size) {
+            nextSegment();
+        }
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putShort((short) nameBytes);
+        if (nameBytes == name.length()) {
+            // 全是ASCII字符时直接写入映射的内存,不产生中间数组:
+            for (int i = 0; i < nameBytes; i++) {
+                buffer.put((byte) name.charAt(i));
+            }
+        } else {
+            buffer.put(name.getBytes(StandardCharsets.UTF_8));
+        }
+        buffer.putDouble(price);
+        buffer.put(start, RECORD);
+    }
+
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    // 写满的段在切换时落盘,每64MB才等待一次磁盘:
+    private void nextSegment() {
+        lock.lock();
+        try {
+            if (buffer.hasRemaining()) {
+                buffer.put(PAD);
+            }
+            buffer.force();
+            segmentStart += SEGMENT_SIZE;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 已经关闭时什么也不做,关闭时已经落盘:
+    void force() {
+        lock.lock();
+        try {
+            if (!closed) {
+                buffer.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffer.force();
+            // 截掉映射时零填充的部分,关闭后的日志和快照只占实际写入的大小:
+            channel.truncate(segmentStart + buffer.position());
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 按顺序回放一个日志文件中的全部记录:
+    static void read(Path file, PriceRecordHandler handler) throws IOException {
+        byte[] nameBuffer = new byte[MAX_NAME_BYTES];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long start = 0; start < size; start += SEGMENT_SIZE) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                while (segment.hasRemaining()) {
+                    byte type = segment.get();
+                    if (type == END) {
+                        return;
+                    }
+                    if (type == PAD) {
+                        break;
+                    }
+                    int nameBytes = segment.getShort() & 0xFFFF;
+                    segment.get(nameBuffer, 0, nameBytes);
+                    handler.apply(new String(nameBuffer, 0, nameBytes, StandardCharsets.UTF_8), segment.getDouble());
+                }
+            }
+        }
+    }
+}
+
+//测试日志恢复速度:写入n个商品和n次改价,关闭后重新打开Store,统计恢复耗时
+class PriceJournalBenchmark {
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path dir = Files.createTempDirectory("price-journal");
+        Store store = new Store(new SyncDispatcher(), new PriceJournal(dir, 100, 0));
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            store.addNewProduct("product-" + i, i);
+        }
+        for (int i = 0; i < n; i++) {
+            store.setProductPrice("product-" + i, i + 0.5);
+        }
+        System.out.printf("wrote %d records in %dms%n", 2L * n, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        store.close();
+
+        start = System.nanoTime();
+        PriceJournal journal = new PriceJournal(dir, 100, 0);
+        Store recovered = new Store(new SyncDispatcher(), journal);
+        System.out.printf("recovered %d products from journal in %dms%n", recovered.getProductCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        journal.snapshot(recovered.getProducts());
+        recovered.close();
+
+        start = System.nanoTime();
+        recovered = new Store(new SyncDispatcher(), new PriceJournal(dir, 100, 0));
+        System.out.printf("recovered %d products from snapshot in %dms%n", recovered.getProductCount(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        recovered.close();
+
+        // 删除临时目录:
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
+
+//Store通知观察者的方式
+interface ProductEventDispatcher extends AutoCloseable {
+    void addObserver(ProductObserver observer);
+
+    void removeObserver(ProductObserver observer);
+
+    void published(Product p);
+
+    void priceChanged(Product p);
+
+    // 停止后台线程,同步通知时什么也不做:
+    @Override
+    default void close() {
+    }
+}
+
+//在调用方线程中依次通知每个观察者.
+// 观察者很少变化,CopyOnWriteArrayList遍历时不加锁也不复制,通知过程中注册或取消注册也是安全的
+class SyncDispatcher implements ProductEventDispatcher {
+    private final List<ProductObserver> observers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addObserver(ProductObserver observer) {
+        this.observers.add(observer);
+    }
+
+    @Override
+    public void removeObserver(ProductObserver observer) {
+        this.observers.remove(observer);
+    }
+
+    @Override
+    public void published(Product p) {
+        observers.forEach(o -> o.onPublished(p));
+    }
+
+    @Override
+    public void priceChanged(Product p) {
+        observers.forEach(o -> o.onPriceChanged(p));
+    }
+}
+
+//消费者没有新事件(或生产者等待空位)时的等待方式,idle()返回下一次调用时传入的计数
+enum WaitStrategy {
+    // 一直自旋,延迟最低,但一直占用一个CPU:
+    BUSY_SPIN {
+        @Override
+        int idle(int counter) {
+            Thread.onSpinWait();
+            return counter + 1;
+        }
+    },
+    // 先短暂自旋,之后让出CPU:
+    YIELD {
+        @Override
+        int idle(int counter) {
+            if (counter < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+            return counter + 1;
+        }
+    },
+    // 先自旋、再让出CPU,最后每次休眠一小段时间,空闲时几乎不占CPU:
+    PARK {
+        @Override
+        int idle(int counter) {
+            if (counter < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (counter < SPIN_TRIES * 2) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            return counter + 1;
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 50_000;
+
+    abstract int idle(int counter);
+}
+
+//消费线程交给观察者的商品快照,每个消费线程一个,处理每个事件前写入该事件的商品名和价格.
+// 只在回调期间有效,观察者需要保留时应复制为新的Product
+final class ProductEventSnapshot extends Product {
+    private String name;
+    private double price;
+
+    ProductEventSnapshot() {
+        super(null, 0);
+    }
+
+    ProductEventSnapshot set(String name, double price) {
+        this.name = name;
+        this.price = price;
+        return this;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public double getPrice() {
+        return price;
+    }
+
+    @Override
+    public void setPrice(double price) {
+        this.price = price;
+    }
+}
+
+//环形缓冲区中预先分配、重复使用的事件槽
+final class ProductEvent {
+    static final int PUBLISHED = 0;
+    static final int PRICE_CHANGED = 1;
+
+    int type;
+    // 发布时的商品名和价格,直接写入槽中,发布时不分配对象,之后修改价格不影响已经发布的事件:
+    String name;
+    double price;
+    // 槽中事件的序号,写完其他字段后最后写入,消费者看到序号后就能看到完整的事件:
+    volatile long sequence = -1;
+}
+
+//异步通知:事件写入预先分配的环形缓冲区后立即返回,每个观察者有自己的消费线程,按顺序处理全部事件.
+// 慢的观察者不会拖慢发布,只有当它落后整个缓冲区时,发布方才需要等待它腾出空位.
+// 序号通过AtomicLong领取,多个线程同时发布也是安全的.
+// 观察者收到的Product是消费线程重复使用的快照,只在回调期间有效.
+// 观察者可以在回调中改价(在自己的消费线程中发布),但缓冲区被自己占满时会抛出IllegalStateException,
+// 因为它要等待的正是自己腾出空位,等待永远不会结束
+class RingBufferDispatcher implements ProductEventDispatcher {
+    private final ProductEvent[] ring;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    // 下一个待领取的序号:
+    private final AtomicLong claim = new AtomicLong();
+    private final List<ObserverConsumer> consumers = new CopyOnWriteArrayList<>();
+    // 上一次计算出的最慢消费者序号,缓冲区没有绕回时不必每次都遍历所有消费者:
+    private volatile long gatingSequence = -1;
+    private volatile boolean closed = false;
+
+    // bufferSize必须是2的幂:
+    public RingBufferDispatcher(int bufferSize, WaitStrategy waitStrategy) {
+        if (bufferSize <= 0 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize must be a power of 2: " + bufferSize);
+        }
+        this.ring = new ProductEvent[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            ring[i] = new ProductEvent();
+        }
+        this.mask = bufferSize - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    // 新的观察者从下一个事件开始接收:
+    @Override
+    public void addObserver(ProductObserver observer) {
+        ObserverConsumer consumer = new ObserverConsumer(this, observer, claim.get() - 1);
+        consumers.add(consumer);
+        consumer.start();
+    }
+
+    // 停止该观察者的消费线程,已经发布的事件仍会处理完.
+    // 消费线程退出前一直留在consumers中,发布方不会覆盖它还没有读取的槽:
+    @Override
+    public void removeObserver(ProductObserver observer) {
+        for (ObserverConsumer consumer : consumers) {
+            if (consumer.observer == observer && consumer.isRunning()) {
+                consumer.stop(claim.get() - 1);
+                break;
+            }
+        }
+    }
+
+    // 由消费线程退出时调用,之后发布方不再等待它:
+    void consumerExited(ObserverConsumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    @Override
+    public void published(Product p) {
+        publish(ProductEvent.PUBLISHED, p);
+    }
+
+    @Override
+    public void priceChanged(Product p) {
+        publish(ProductEvent.PRICE_CHANGED, p);
+    }
+
+    private void publish(int type, Product p) {
+        if (closed || consumers.isEmpty()) {
+            return;
+        }
+        ObserverConsumer self = ObserverConsumer.current(this);
+        long seq = self == null ? claim.getAndIncrement() : claimFrom(self);
+        // 等待最慢的消费者处理完这个槽上一轮的事件:
+        long wrapPoint = seq - ring.length;
+        if (wrapPoint > gatingSequence) {
+            int counter = 0;
+            long min;
+            while (wrapPoint > (min = minConsumerSequence(seq))) {
+                counter = waitStrategy.idle(counter);
+            }
+            gatingSequence = min;
+        }
+        ProductEvent event = ring[(int) seq & mask];
+        event.type = type;
+        event.name = p.getName();
+        event.price = p.getPrice();
+        event.sequence = seq;
+    }
+
+    // 消费线程在回调中发布:先确认领取的槽不需要等待自己,再用CAS领取.
+    // 消费者的序号只会增加,检查之后到CAS成功之间不会变得需要等待:
+    private long claimFrom(ObserverConsumer self) {
+        while (true) {
+            long seq = claim.get();
+            if (seq - ring.length > self.sequence) {
+                throw new IllegalStateException("Ring buffer is full and observer " + self.observer
+                        + " is publishing from its own callback, it would wait for itself forever");
+            }
+            if (claim.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+        }
+    }
+
+    private long minConsumerSequence(long defaultValue) {
+        long min = defaultValue;
+        for (ObserverConsumer consumer : consumers) {
+            min = Math.min(min, consumer.sequence);
+        }
+        return min;
+    }
+
+    ProductEvent slot(long seq) {
+        return ring[(int) seq & mask];
+    }
+
+    WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    // 停止接收新事件,消费线程处理完已经发布的事件后退出:
+    @Override
+    public void close() {
+        closed = true;
+        long last = claim.get() - 1;
+        for (ObserverConsumer consumer : consumers) {
+            consumer.stop(last);
+        }
+    }
+}
+
+//一个观察者的消费线程,按序号依次处理环形缓冲区中的事件
+class ObserverConsumer implements Runnable {
+    //消费线程,发布时据此判断是不是在观察者的回调中发布
+    private static final class ConsumerThread extends Thread {
+        final ObserverConsumer consumer;
+
+        ConsumerThread(ObserverConsumer consumer, String name) {
+            super(consumer, name);
+            this.consumer = consumer;
+        }
+    }
+
+    final ProductObserver observer;
+    private final RingBufferDispatcher dispatcher;
+    private final Thread thread;
+    // 已经处理完的最后一个序号:
+    volatile long sequence;
+    // 处理完这个序号后退出,Long.MAX_VALUE表示一直运行:
+    private volatile long stopSequence = Long.MAX_VALUE;
+    // 交给观察者的快照,只在消费线程中使用:
+    private final ProductEventSnapshot snapshot = new ProductEventSnapshot();
+
+    ObserverConsumer(RingBufferDispatcher dispatcher, ProductObserver observer, long sequence) {
+        this.dispatcher = dispatcher;
+        this.observer = observer;
+        this.sequence = sequence;
+        this.thread = new ConsumerThread(this, "observer-" + observer.getClass().getSimpleName());
+        this.thread.setDaemon(true);
+    }
+
+    // 当前线程是dispatcher的消费线程时返回对应的消费者,否则返回null.只是一次类型检查,不影响普通的发布:
+    static ObserverConsumer current(RingBufferDispatcher dispatcher) {
+        Thread t = Thread.currentThread();
+        if (t instanceof ConsumerThread) {
+            ObserverConsumer consumer = ((ConsumerThread) t).consumer;
+            return consumer.dispatcher == dispatcher ? consumer : null;
+        }
+        return null;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // 处理完lastSequence及之前已经领取的事件后退出:
+    void stop(long lastSequence) {
+        stopSequence = lastSequence;
+    }
+
+    boolean isRunning() {
+        return stopSequence == Long.MAX_VALUE;
+    }
+
+    @Override
+    public void run() {
+        try {
+            WaitStrategy waitStrategy = dispatcher.getWaitStrategy();
+            long next = sequence + 1;
+            int counter = 0;
+            while (next <= stopSequence) {
+                ProductEvent event = dispatcher.slot(next);
+                if (event.sequence == next) {
+                    deliver(event);
+                    sequence = next++;
+                    counter = 0;
+                } else {
+                    counter = waitStrategy.idle(counter);
+                }
+            }
+        } finally {
+            // 无论怎样退出,都不能让发布方继续等待这个消费者:
+            dispatcher.consumerExited(this);
+        }
+    }
+
+    private void deliver(ProductEvent event) {
+        Product p = snapshot.set(event.name, event.price);
+        try {
+            if (event.type == ProductEvent.PUBLISHED) {
+                observer.onPublished(p);
+            } else {
+                observer.onPriceChanged(p);
+            }
+        } catch (Throwable e) {
+            // 一个事件处理失败(包括Error)不影响后续事件,消费线程也不会因此退出:
+            System.err.println("Observer " + observer + " failed: " + e);
+        }
+    }
+}
+
+//按主题订阅:观察者可以只订阅某个商品名,或者某个前缀(例如"fruit/"表示一个分类)的全部商品.
+// 通知时只查找精确订阅表和沿商品名走一遍前缀树,开销取决于感兴趣的观察者,与观察者总数无关.
+// addObserver()注册的观察者接收所有商品的通知;同时匹配多个订阅的观察者会收到多次通知
+class TopicDispatcher implements ProductEventDispatcher {
+    private final List<ProductObserver> allProducts = new CopyOnWriteArrayList<>();
+    private final Map<String, List<ProductObserver>> byName = new ConcurrentHashMap<>();
+    private final PrefixNode prefixes = new PrefixNode();
+
+    //前缀树的节点,observers是订阅了从根到该节点这个前缀的观察者
+    private static final class PrefixNode {
+        final Map<Character, PrefixNode> children = new ConcurrentHashMap<>();
+        final List<ProductObserver> observers = new CopyOnWriteArrayList<>();
+    }
+
+    @Override
+    public void addObserver(ProductObserver observer) {
+        allProducts.add(observer);
+    }
+
+    // 取消该观察者的全部订阅:
+    @Override
+    public void removeObserver(ProductObserver observer) {
+        allProducts.remove(observer);
+        for (List<ProductObserver> observers : byName.values()) {
+            observers.remove(observer);
+        }
+        removeFromPrefixes(prefixes, observer);
+    }
+
+    private static void removeFromPrefixes(PrefixNode node, ProductObserver observer) {
+        node.observers.remove(observer);
+        for (PrefixNode child : node.children.values()) {
+            removeFromPrefixes(child, observer);
+        }
+    }
+
+    public void subscribe(String productName, ProductObserver observer) {
+        byName.computeIfAbsent(productName, k -> new CopyOnWriteArrayList<>()).add(observer);
+    }
+
+    public void unsubscribe(String productName, ProductObserver observer) {
+        List<ProductObserver> observers = byName.get(productName);
+        if (observers != null) {
+            observers.remove(observer);
+        }
+    }
+
+    public void subscribePrefix(String prefix, ProductObserver observer) {
+        PrefixNode node = prefixes;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), c -> new PrefixNode());
+        }
+        node.observers.add(observer);
+    }
+
+    public void unsubscribePrefix(String prefix, ProductObserver observer) {
+        PrefixNode node = prefixes;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.children.get(prefix.charAt(i));
+        }
+        if (node != null) {
+            node.observers.remove(observer);
+        }
+    }
+
+    @Override
+    public void published(Product p) {
+        dispatch(p, true);
+    }
+
+    @Override
+    public void priceChanged(Product p) {
+        dispatch(p, false);
+    }
+
+    private void dispatch(Product p, boolean published) {
+        notifyAll(allProducts, p, published);
+        List<ProductObserver> observers = byName.get(p.getName());
+        if (observers != null) {
+            notifyAll(observers, p, published);
+        }
+        // 沿商品名逐个字符向下,经过的每个节点都是该商品名的一个前缀:
+        String name = p.getName();
+        PrefixNode node = prefixes;
+        for (int i = 0; node != null; i++) {
+            notifyAll(node.observers, p, published);
+            node = i < name.length() ? node.children.get(name.charAt(i)) : null;
+        }
+    }
+
+    private static void notifyAll(List<ProductObserver> observers, Product p, boolean published) {
+        for (ProductObserver o : observers) {
+            if (published) {
+                o.onPublished(p);
+            } else {
+                o.onPriceChanged(p);
+            }
+        }
+    }
+}
+
+//合并价格更新:每个观察者在两次通知之间只保留每个商品最新的价格,慢的观察者只需要处理不同商品的数量,而不是全部更新.
+// tickMillis为0时观察者处理完上一批立即处理下一批,否则每隔tickMillis毫秒处理一批.
+// 每个观察者有自己的线程;同一批中不同商品的通知顺序不固定
+class ConflatingDispatcher implements ProductEventDispatcher {
+    private final long tickMillis;
+    private final List<ConflatingConsumer> consumers = new CopyOnWriteArrayList<>();
+
+    public ConflatingDispatcher(long tickMillis) {
+        if (tickMillis < 0) {
+            throw new IllegalArgumentException("Invalid tickMillis: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+    }
+
+    @Override
+    public void addObserver(ProductObserver observer) {
+        ConflatingConsumer consumer = new ConflatingConsumer(observer, tickMillis);
+        consumers.add(consumer);
+        consumer.start();
+    }
+
+    @Override
+    public void removeObserver(ProductObserver observer) {
+        for (ConflatingConsumer consumer : consumers) {
+            if (consumer.observer == observer) {
+                consumers.remove(consumer);
+                consumer.stop();
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void published(Product p) {
+        offer(p, true);
+    }
+
+    @Override
+    public void priceChanged(Product p) {
+        offer(p, false);
+    }
+
+    private void offer(Product p, boolean published) {
+        if (consumers.isEmpty()) {
+            return;
+        }
+        for (ConflatingConsumer consumer : consumers) {
+            consumer.offer(p, published);
+        }
+    }
+
+    // 被合并掉、没有单独通知的更新数:
+    public long getConflatedCount() {
+        long count = 0;
+        for (ConflatingConsumer consumer : consumers) {
+            count += consumer.conflated.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        for (ConflatingConsumer consumer : consumers) {
+            consumer.stop();
+        }
+        consumers.clear();
+    }
+}
+
+//待通知的更新:商品快照,以及这个商品在本批中是否是新发布的
+final class PendingUpdate {
+    final Product product;
+    final boolean published;
+
+    PendingUpdate(Product product, boolean published) {
+        this.product = product;
+        this.published = published;
+    }
+
+    // 新发布后又改过价的商品仍然通知onPublished(),带上最新的价格:
+    PendingUpdate mergeNewer(PendingUpdate newer) {
+        return published && !newer.published ? new PendingUpdate(newer.product, true) : newer;
+    }
+}
+
+//一个观察者的合并队列和通知线程
+class ConflatingConsumer implements Runnable {
+    final ProductObserver observer;
+    private final long tickNanos;
+    // 每个商品最新的待通知更新:
+    private final ConcurrentHashMap<String, PendingUpdate> pending = new ConcurrentHashMap<>();
+    // 有新更新时置为true并唤醒通知线程,避免每次更新都unpark:
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final Thread thread;
+    final LongAdder conflated = new LongAdder();
+    private volatile boolean running = true;
+
+    ConflatingConsumer(ProductObserver observer, long tickMillis) {
+        this.observer = observer;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.thread = new Thread(this, "conflating-observer-" + observer.getClass().getSimpleName());
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // 通知完已经收到的更新后退出:
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    // 在compute里读取价格做快照:同一商品的compute是串行的,最后执行的一次一定读到最新的价格,
+    // 不会出现较早读到的旧价格较晚写入、覆盖掉新价格的情况:
+    void offer(Product p, boolean published) {
+        pending.compute(p.getName(), (name, previous) -> {
+            PendingUpdate update = new PendingUpdate(new Product(name, p.getPrice()), published);
+            if (previous == null) {
+                return update;
+            }
+            conflated.increment();
+            return previous.mergeNewer(update);
+        });
+        if (tickNanos == 0 && signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running || !pending.isEmpty()) {
+            if (tickNanos > 0) {
+                LockSupport.parkNanos(this, tickNanos);
+            } else {
+                // 先清除信号再检查,drain期间到达的更新会重新置位信号,不会漏掉唤醒:
+                signalled.set(false);
+                if (pending.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+            }
+            drain();
+        }
+    }
+
+    private void drain() {
+        for (String name : pending.keySet()) {
+            PendingUpdate update = pending.remove(name);
+            if (update == null) {
+                continue;
+            }
+            try {
+                if (update.published) {
+                    observer.onPublished(update.product);
+                } else {
+                    observer.onPriceChanged(update.product);
+                }
+            } catch (Throwable e) {
+                // 和RingBufferDispatcher一样,一个通知失败(包括Error)不影响后续通知,通知线程也不会因此退出:
+                System.err.println("Observer " + observer + " failed: " + e);
+            }
+        }
+    }
+}
+
+//多线程改价压测:每个线程修改自己的一组商品,依次用1、2、4...个线程运行,输出每秒的改价次数
+class StoreBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        int productsPerThread = 1000;
+        Store store = new Store();
+        store.addObserver(new Admin());
+        store.addObserver(new Customer());
+        String[][] names = new String[maxThreads][productsPerThread];
+        for (int t = 0; t < maxThreads; t++) {
+            for (int i = 0; i < productsPerThread; i++) {
+                names[t][i] = "product-" + t + "-" + i;
+                store.addNewProduct(names[t][i], 1.0);
+            }
+        }
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            LongAdder updates = new LongAdder();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                String[] mine = names[t];
+                workers[t] = new Thread(() -> {
+                    long count = 0;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < mine.length; i++) {
+                            store.setProductPrice(mine[i], i);
+                        }
+                        count += mine.length;
+                    }
+                    updates.add(count);
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            System.out.printf("threads=%d: %.0f updates/s%n", threads, updates.sum() * 1000.0 / durationMillis);
+        }
+    }
+}
+
+class Admin extends ProductObserver {
+
+}
+
+class Customer extends ProductObserver {
+
+}
+
+/**
+ * 中介：Mediator
+ */
+class OrderFrame extends JFrame {
+    public OrderFrame(String... names) {
+        setTitle("Order");
+        setSize(460, 200);
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        Container c = getContentPane();
+        c.setLayout(new FlowLayout(FlowLayout.LEADING, 20, 20));
+        c.add(new JLabel("Use Mediator Pattern"));
+        List<JCheckBox> checkboxList = addCheckBox(names);
+        JButton selectAll = addButton("Select All");
+        JButton selectNone = addButton("Select None");
+        selectNone.setEnabled(false);
+        JButton selectInverse = addButton("Inverse Select");
+        new Mediator(checkboxList, selectAll, selectNone, selectInverse);
+        setVisible(true);
+    }
+
+    private List<JCheckBox> addCheckBox(String... names) {
+        JPanel panel = new JPanel();
+        panel.add(new JLabel("Menu:"));
+        List<JCheckBox> list = new ArrayList<>();
+        for (String name : names) {
+            JCheckBox checkbox = new JCheckBox(name);
+            list.add(checkbox);
+            panel.add(checkbox);
+        }
+        getContentPane().add(panel);
+        return list;
+    }
+
+    private JButton addButton(String label) {
+        JButton button = new JButton(label);
+        getContentPane().add(button);
+        return button;
+    }
+}
+
+//引用4个UI组件，并负责跟它们交互
+class Mediator {
+    // 引用UI组件:
+    private final List<JCheckBox> checkBoxList;
+    private final JButton selectAll;
+    private final JButton selectNone;
+    private final JButton selectInverse;
+
+    public Mediator(List<JCheckBox> checkBoxList, JButton selectAll, JButton selectNone, JButton selectInverse) {
+        this.checkBoxList = checkBoxList;
+        this.selectAll = selectAll;
+        this.selectNone = selectNone;
+        this.selectInverse = selectInverse;
+        this.checkBoxList.forEach(checkBox -> {
+            checkBox.addChangeListener(this::onCheckBoxChanged);
+        });
+        this.selectAll.addActionListener(this::onSelectAllClicked);
+        this.selectNone.addActionListener(this::onSelectNoneClicked);
+        this.selectInverse.addActionListener(this::onSelectInverseClicked);
+    }
+
+    public void onCheckBoxChanged(ChangeEvent event) {
+        boolean allChecked = true;
+        boolean allUnchecked = true;
+        for (var checkBox : checkBoxList) {
+            if (checkBox.isSelected()) {
+                allUnchecked = false;
+            } else {
+                allChecked = false;
+            }
+        }
+        selectAll.setEnabled(!allChecked);
+        selectNone.setEnabled(!allUnchecked);
+    }
+
+    public void onSelectAllClicked(ActionEvent event) {
+        checkBoxList.forEach(checkBox -> checkBox.setSelected(true));
+        selectAll.setEnabled(false);
+        selectNone.setEnabled(true);
+    }
+
+    public void onSelectNoneClicked(ActionEvent event) {
+        checkBoxList.forEach(checkBox -> checkBox.setSelected(false));
+        selectAll.setEnabled(true);
+        selectNone.setEnabled(false);
+    }
+
+    public void onSelectInverseClicked(ActionEvent event) {
+        checkBoxList.forEach(checkBox -> checkBox.setSelected(!checkBox.isSelected()));
+        onCheckBoxChanged(null);
+    }
+}
+
+/**
+ * 迭代器：Iterator
+ */
+class ReverseArrayCollection<T> implements Iterable<T> {
+    private final T[] array;
+
+    public ReverseArrayCollection(T... objs) {
+        this.array = Arrays.copyOfRange(objs, 0, objs.length);
+    }
+
+    public Iterator<T> iterator() {
+        return new ReverseIterator();
+    }
+
+    //使用内部类的好处是内部类隐含地持有一个它所在对象的this引用，可以通过ReverseArrayCollection.this引用到它所在的集合。
+    class ReverseIterator implements Iterator<T> {
+        // 索引位置:
+        int index;
+
+        public ReverseIterator() {
+            // 创建Iterator时,索引在数组末尾:
+            this.index = ReverseArrayCollection.this.array.length;
+        }
+
+        public boolean hasNext() {
+            // 如果索引大于0,那么可以移动到下一个元素(倒序往前移动):
+            return index > 0;
+        }
+
+        public T next() {
+            // 将索引移动到下一个元素并返回(倒序往前移动):
+            index--;
+            return array[index];
+        }
+    }
+}
+
+/**
+ * 代理:Proxy
+ */
+//对Connection接口做一个抽象的代理类,把Connection接口定义的方法全部实现一遍，因为Connection接口定义的方法太多了，
+// 后面我们要编写的LazyConnectionProxy只需要继承AbstractConnectionProxy，就不必再把Connection接口方法挨个实现一遍
+abstract class AbstractConnectionProxy implements Connection {
+
+    public AbstractConnectionProxy() {
+        super();
+    }
+
+    // 抽象方法获取实际的Connection:
+    protected abstract Connection getRealConnection() throws SQLException;
+
+    // 实现Connection接口的每一个方法:
+    public Statement createStatement() throws SQLException {
+        return getRealConnection().createStatement();
+    }
+
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return getRealConnection().prepareStatement(sql);
+    }
+
+    //Connection接口定义的其他方法全部实现一遍,so much.
+    @Override
+    public void beginRequest() throws SQLException {
+
+    }
+
+    @Override
+    public void endRequest() throws SQLException {
+
+    }
+
+    @Override
+    public boolean setShardingKeyIfValid(ShardingKey shardingKey, ShardingKey superShardingKey, int timeout) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public boolean setShardingKeyIfValid(ShardingKey shardingKey, int timeout) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public void setShardingKey(ShardingKey shardingKey, ShardingKey superShardingKey) throws SQLException {
+
+    }
+
+    @Override
+    public void setShardingKey(ShardingKey shardingKey) throws SQLException {
+
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return super.equals(obj);
+    }
+
+    @Override
+    protected Object clone() throws CloneNotSupportedException {
+        return super.clone();
+    }
+
+    @Override
+    public String toString() {
+        return super.toString();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        super.finalize();
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s) throws SQLException {
+        return getRealConnection().prepareCall(s);
+    }
+
+    @Override
+    public String nativeSQL(String s) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return getRealConnection().getAutoCommit();
+    }
+
+    @Override
+    public void setAutoCommit(boolean b) throws SQLException {
+        getRealConnection().setAutoCommit(b);
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        getRealConnection().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        getRealConnection().rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return false;
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return getRealConnection().isReadOnly();
+    }
+
+    @Override
+    public void setReadOnly(boolean b) throws SQLException {
+        getRealConnection().setReadOnly(b);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setCatalog(String s) throws SQLException {
+
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return getRealConnection().getTransactionIsolation();
+    }
+
+    @Override
+    public void setTransactionIsolation(int i) throws SQLException {
+        getRealConnection().setTransactionIsolation(i);
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1) throws SQLException {
+        return getRealConnection().createStatement(i, i1);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
+        return getRealConnection().prepareStatement(s, i, i1);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s, int i, int i1) throws SQLException {
+        return getRealConnection().prepareCall(s, i, i1);
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public void setHoldability(int i) throws SQLException {
+
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return getRealConnection().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String s) throws SQLException {
+        return getRealConnection().setSavepoint(s);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        getRealConnection().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        getRealConnection().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1, int i2) throws SQLException {
+        return getRealConnection().createStatement(i, i1, i2);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
+        return getRealConnection().prepareStatement(s, i, i1, i2);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s, int i, int i1, int i2) throws SQLException {
+        return getRealConnection().prepareCall(s, i, i1, i2);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i) throws SQLException {
+        return getRealConnection().prepareStatement(s, i);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
+        return getRealConnection().prepareStatement(s, ints);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
+        return getRealConnection().prepareStatement(s, strings);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isValid(int i) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public void setClientInfo(String s, String s1) throws SQLClientInfoException {
+
+    }
+
+    @Override
+    public String getClientInfo(String s) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+
+    }
+
+    @Override
+    public Array createArrayOf(String s, Object[] objects) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public Struct createStruct(String s, Object[] objects) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setSchema(String s) throws SQLException {
+
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int i) throws SQLException {
+
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return false;
+    }
+
+}
+
+//与AbstractConnectionProxy类似,对Statement接口做一个抽象的代理类,把所有方法都转发给实际的Statement,
+// 子类只需要覆写关心的方法
+abstract class AbstractStatementProxy implements Statement {
+
+    // 抽象方法获取实际的Statement:
+    protected abstract Statement getRealStatement() throws SQLException;
+
+    // 实现Statement接口的每一个方法:
+    @Override
+    public boolean execute(String s) throws SQLException {
+        return getRealStatement().execute(s);
+    }
+
+    @Override
+    public boolean execute(String s, String[] strings) throws SQLException {
+        return getRealStatement().execute(s, strings);
+    }
+
+    @Override
+    public boolean execute(String s, int[] ints) throws SQLException {
+        return getRealStatement().execute(s, ints);
+    }
+
+    @Override
+    public boolean execute(String s, int i) throws SQLException {
+        return getRealStatement().execute(s, i);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        getRealStatement().close();
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        getRealStatement().cancel();
+    }
+
+    @Override
+    public ResultSet executeQuery(String s) throws SQLException {
+        return getRealStatement().executeQuery(s);
+    }
+
+    @Override
+    public int executeUpdate(String s, String[] strings) throws SQLException {
+        return getRealStatement().executeUpdate(s, strings);
+    }
+
+    @Override
+    public int executeUpdate(String s, int i) throws SQLException {
+        return getRealStatement().executeUpdate(s, i);
+    }
+
+    @Override
+    public int executeUpdate(String s) throws SQLException {
+        return getRealStatement().executeUpdate(s);
+    }
+
+    @Override
+    public int executeUpdate(String s, int[] ints) throws SQLException {
+        return getRealStatement().executeUpdate(s, ints);
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return getRealStatement().getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int i) throws SQLException {
+        getRealStatement().setMaxFieldSize(i);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return getRealStatement().getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int i) throws SQLException {
+        getRealStatement().setMaxRows(i);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean b) throws SQLException {
+        getRealStatement().setEscapeProcessing(b);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return getRealStatement().getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int i) throws SQLException {
+        getRealStatement().setQueryTimeout(i);
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return getRealStatement().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        getRealStatement().clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String s) throws SQLException {
+        getRealStatement().setCursorName(s);
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return getRealStatement().getResultSet();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return getRealStatement().getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults(int i) throws SQLException {
+        return getRealStatement().getMoreResults(i);
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return getRealStatement().getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int i) throws SQLException {
+        getRealStatement().setFetchDirection(i);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return getRealStatement().getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int i) throws SQLException {
+        getRealStatement().setFetchSize(i);
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return getRealStatement().getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return getRealStatement().getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return getRealStatement().getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String s) throws SQLException {
+        getRealStatement().addBatch(s);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        getRealStatement().clearBatch();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        return getRealStatement().executeBatch();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getRealStatement().getConnection();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return getRealStatement().getGeneratedKeys();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return getRealStatement().getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return getRealStatement().isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean b) throws SQLException {
+        getRealStatement().setPoolable(b);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return getRealStatement().isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        getRealStatement().closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return getRealStatement().isCloseOnCompletion();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return getRealStatement().unwrap(aClass);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return getRealStatement().isWrapperFor(aClass);
+    }
+}
+
+//PreparedStatement的抽象代理类,Statement接口的方法由AbstractStatementProxy转发
+abstract class AbstractPreparedStatementProxy extends AbstractStatementProxy implements PreparedStatement {
+
+    // 抽象方法获取实际的PreparedStatement:
+    @Override
+    protected abstract PreparedStatement getRealStatement() throws SQLException;
+
+    // 实现PreparedStatement接口的每一个方法:
+    @Override
+    public boolean execute() throws SQLException {
+        return getRealStatement().execute();
+    }
+
+    @Override
+    public void setBoolean(int i, boolean b) throws SQLException {
+        getRealStatement().setBoolean(i, b);
+    }
+
+    @Override
+    public void setByte(int i, byte b) throws SQLException {
+        getRealStatement().setByte(i, b);
+    }
+
+    @Override
+    public void setShort(int i, short i1) throws SQLException {
+        getRealStatement().setShort(i, i1);
+    }
+
+    @Override
+    public void setInt(int i, int i1) throws SQLException {
+        getRealStatement().setInt(i, i1);
+    }
+
+    @Override
+    public void setLong(int i, long l) throws SQLException {
+        getRealStatement().setLong(i, l);
+    }
+
+    @Override
+    public void setFloat(int i, float v) throws SQLException {
+        getRealStatement().setFloat(i, v);
+    }
+
+    @Override
+    public void setDouble(int i, double v) throws SQLException {
+        getRealStatement().setDouble(i, v);
+    }
+
+    @Override
+    public void setURL(int i, URL url) throws SQLException {
+        getRealStatement().setURL(i, url);
+    }
+
+    @Override
+    public void setArray(int i, Array array) throws SQLException {
+        getRealStatement().setArray(i, array);
+    }
+
+    @Override
+    public void setTime(int i, Time time, Calendar calendar) throws SQLException {
+        getRealStatement().setTime(i, time, calendar);
+    }
+
+    @Override
+    public void setTime(int i, Time time) throws SQLException {
+        getRealStatement().setTime(i, time);
+    }
+
+    @Override
+    public void setDate(int i, java.sql.Date date, Calendar calendar) throws SQLException {
+        getRealStatement().setDate(i, date, calendar);
+    }
+
+    @Override
+    public void setDate(int i, java.sql.Date date) throws SQLException {
+        getRealStatement().setDate(i, date);
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        return getRealStatement().executeQuery();
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        return getRealStatement().executeUpdate();
+    }
+
+    @Override
+    public void setNull(int i, int i1) throws SQLException {
+        getRealStatement().setNull(i, i1);
+    }
+
+    @Override
+    public void setNull(int i, int i1, String s) throws SQLException {
+        getRealStatement().setNull(i, i1, s);
+    }
+
+    @Override
+    public void setBigDecimal(int i, BigDecimal bigDecimal) throws SQLException {
+        getRealStatement().setBigDecimal(i, bigDecimal);
+    }
+
+    @Override
+    public void setString(int i, String s) throws SQLException {
+        getRealStatement().setString(i, s);
+    }
+
+    @Override
+    public void setBytes(int i, byte[] bytes) throws SQLException {
+        getRealStatement().setBytes(i, bytes);
+    }
+
+    @Override
+    public void setTimestamp(int i, Timestamp timestamp, Calendar calendar) throws SQLException {
+        getRealStatement().setTimestamp(i, timestamp, calendar);
+    }
+
+    @Override
+    public void setTimestamp(int i, Timestamp timestamp) throws SQLException {
+        getRealStatement().setTimestamp(i, timestamp);
+    }
+
+    @Override
+    public void setAsciiStream(int i, InputStream inputStream) throws SQLException {
+        getRealStatement().setAsciiStream(i, inputStream);
+    }
+
+    @Override
+    public void setAsciiStream(int i, InputStream inputStream, int i1) throws SQLException {
+        getRealStatement().setAsciiStream(i, inputStream, i1);
+    }
+
+    @Override
+    public void setAsciiStream(int i, InputStream inputStream, long l) throws SQLException {
+        getRealStatement().setAsciiStream(i, inputStream, l);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setUnicodeStream(int i, InputStream inputStream, int i1) throws SQLException {
+        getRealStatement().setUnicodeStream(i, inputStream, i1);
+    }
+
+    @Override
+    public void setBinaryStream(int i, InputStream inputStream) throws SQLException {
+        getRealStatement().setBinaryStream(i, inputStream);
+    }
+
+    @Override
+    public void setBinaryStream(int i, InputStream inputStream, long l) throws SQLException {
+        getRealStatement().setBinaryStream(i, inputStream, l);
+    }
+
+    @Override
+    public void setBinaryStream(int i, InputStream inputStream, int i1) throws SQLException {
+        getRealStatement().setBinaryStream(i, inputStream, i1);
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        getRealStatement().clearParameters();
+    }
+
+    @Override
+    public void setObject(int i, Object o) throws SQLException {
+        getRealStatement().setObject(i, o);
+    }
+
+    @Override
+    public void setObject(int i, Object o, int i1, int i2) throws SQLException {
+        getRealStatement().setObject(i, o, i1, i2);
+    }
+
+    @Override
+    public void setObject(int i, Object o, int i1) throws SQLException {
+        getRealStatement().setObject(i, o, i1);
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        getRealStatement().addBatch();
+    }
+
+    @Override
+    public void setCharacterStream(int i, Reader reader, int i1) throws SQLException {
+        getRealStatement().setCharacterStream(i, reader, i1);
+    }
+
+    @Override
+    public void setCharacterStream(int i, Reader reader) throws SQLException {
+        getRealStatement().setCharacterStream(i, reader);
+    }
+
+    @Override
+    public void setCharacterStream(int i, Reader reader, long l) throws SQLException {
+        getRealStatement().setCharacterStream(i, reader, l);
+    }
+
+    @Override
+    public void setRef(int i, Ref ref) throws SQLException {
+        getRealStatement().setRef(i, ref);
+    }
+
+    @Override
+    public void setBlob(int i, Blob blob) throws SQLException {
+        getRealStatement().setBlob(i, blob);
+    }
+
+    @Override
+    public void setBlob(int i, InputStream inputStream) throws SQLException {
+        getRealStatement().setBlob(i, inputStream);
+    }
+
+    @Override
+    public void setBlob(int i, InputStream inputStream, long l) throws SQLException {
+        getRealStatement().setBlob(i, inputStream, l);
+    }
+
+    @Override
+    public void setClob(int i, Clob clob) throws SQLException {
+        getRealStatement().setClob(i, clob);
+    }
+
+    @Override
+    public void setClob(int i, Reader reader, long l) throws SQLException {
+        getRealStatement().setClob(i, reader, l);
+    }
+
+    @Override
+    public void setClob(int i, Reader reader) throws SQLException {
+        getRealStatement().setClob(i, reader);
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return getRealStatement().getMetaData();
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return getRealStatement().getParameterMetaData();
+    }
+
+    @Override
+    public void setRowId(int i, RowId rowId) throws SQLException {
+        getRealStatement().setRowId(i, rowId);
+    }
+
+    @Override
+    public void setNString(int i, String s) throws SQLException {
+        getRealStatement().setNString(i, s);
+    }
+
+    @Override
+    public void setNCharacterStream(int i, Reader reader) throws SQLException {
+        getRealStatement().setNCharacterStream(i, reader);
+    }
+
+    @Override
+    public void setNCharacterStream(int i, Reader reader, long l) throws SQLException {
+        getRealStatement().setNCharacterStream(i, reader, l);
+    }
+
+    @Override
+    public void setNClob(int i, Reader reader, long l) throws SQLException {
+        getRealStatement().setNClob(i, reader, l);
+    }
+
+    @Override
+    public void setNClob(int i, Reader reader) throws SQLException {
+        getRealStatement().setNClob(i, reader);
+    }
+
+    @Override
+    public void setNClob(int i, NClob nClob) throws SQLException {
+        getRealStatement().setNClob(i, nClob);
+    }
+
+    @Override
+    public void setSQLXML(int i, SQLXML sqlxml) throws SQLException {
+        getRealStatement().setSQLXML(i, sqlxml);
+    }
+}
+
+//CallableStatement的抽象代理类,PreparedStatement接口的方法由AbstractPreparedStatementProxy转发
+abstract class AbstractCallableStatementProxy extends AbstractPreparedStatementProxy implements CallableStatement {
+
+    // 抽象方法获取实际的CallableStatement:
+    @Override
+    protected abstract CallableStatement getRealStatement() throws SQLException;
+
+    // 实现CallableStatement接口的每一个方法:
+    @Override
+    public Array getArray(String s) throws SQLException {
+        return getRealStatement().getArray(s);
+    }
+
+    @Override
+    public Array getArray(int i) throws SQLException {
+        return getRealStatement().getArray(i);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String s) throws SQLException {
+        return getRealStatement().getBigDecimal(s);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public BigDecimal getBigDecimal(int i, int i1) throws SQLException {
+        return getRealStatement().getBigDecimal(i, i1);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int i) throws SQLException {
+        return getRealStatement().getBigDecimal(i);
+    }
+
+    @Override
+    public Blob getBlob(String s) throws SQLException {
+        return getRealStatement().getBlob(s);
+    }
+
+    @Override
+    public Blob getBlob(int i) throws SQLException {
+        return getRealStatement().getBlob(i);
+    }
+
+    @Override
+    public boolean getBoolean(String s) throws SQLException {
+        return getRealStatement().getBoolean(s);
+    }
+
+    @Override
+    public boolean getBoolean(int i) throws SQLException {
+        return getRealStatement().getBoolean(i);
+    }
+
+    @Override
+    public byte getByte(String s) throws SQLException {
+        return getRealStatement().getByte(s);
+    }
+
+    @Override
+    public byte getByte(int i) throws SQLException {
+        return getRealStatement().getByte(i);
+    }
+
+    @Override
+    public byte[] getBytes(String s) throws SQLException {
+        return getRealStatement().getBytes(s);
+    }
+
+    @Override
+    public byte[] getBytes(int i) throws SQLException {
+        return getRealStatement().getBytes(i);
+    }
+
+    @Override
+    public Reader getCharacterStream(String s) throws SQLException {
+        return getRealStatement().getCharacterStream(s);
+    }
+
+    @Override
+    public Reader getCharacterStream(int i) throws SQLException {
+        return getRealStatement().getCharacterStream(i);
+    }
+
+    @Override
+    public Clob getClob(String s) throws SQLException {
+        return getRealStatement().getClob(s);
+    }
+
+    @Override
+    public Clob getClob(int i) throws SQLException {
+        return getRealStatement().getClob(i);
+    }
+
+    @Override
+    public java.sql.Date getDate(String s, Calendar calendar) throws SQLException {
+        return getRealStatement().getDate(s, calendar);
+    }
+
+    @Override
+    public java.sql.Date getDate(String s) throws SQLException {
+        return getRealStatement().getDate(s);
+    }
+
+    @Override
+    public java.sql.Date getDate(int i, Calendar calendar) throws SQLException {
+        return getRealStatement().getDate(i, calendar);
+    }
+
+    @Override
+    public java.sql.Date getDate(int i) throws SQLException {
+        return getRealStatement().getDate(i);
+    }
+
+    @Override
+    public double getDouble(String s) throws SQLException {
+        return getRealStatement().getDouble(s);
+    }
+
+    @Override
+    public double getDouble(int i) throws SQLException {
+        return getRealStatement().getDouble(i);
+    }
+
+    @Override
+    public float getFloat(String s) throws SQLException {
+        return getRealStatement().getFloat(s);
+    }
+
+    @Override
+    public float getFloat(int i) throws SQLException {
+        return getRealStatement().getFloat(i);
+    }
+
+    @Override
+    public int getInt(String s) throws SQLException {
+        return getRealStatement().getInt(s);
+    }
+
+    @Override
+    public int getInt(int i) throws SQLException {
+        return getRealStatement().getInt(i);
+    }
+
+    @Override
+    public long getLong(String s) throws SQLException {
+        return getRealStatement().getLong(s);
+    }
+
+    @Override
+    public long getLong(int i) throws SQLException {
+        return getRealStatement().getLong(i);
+    }
+
+    @Override
+    public Reader getNCharacterStream(String s) throws SQLException {
+        return getRealStatement().getNCharacterStream(s);
+    }
+
+    @Override
+    public Reader getNCharacterStream(int i) throws SQLException {
+        return getRealStatement().getNCharacterStream(i);
+    }
+
+    @Override
+    public NClob getNClob(String s) throws SQLException {
+        return getRealStatement().getNClob(s);
+    }
+
+    @Override
+    public NClob getNClob(int i) throws SQLException {
+        return getRealStatement().getNClob(i);
+    }
+
+    @Override
+    public String getNString(String s) throws SQLException {
+        return getRealStatement().getNString(s);
+    }
+
+    @Override
+    public String getNString(int i) throws SQLException {
+        return getRealStatement().getNString(i);
+    }
+
+    @Override
+    public <T> T getObject(String s, Class<T> aClass) throws SQLException {
+        return getRealStatement().getObject(s, aClass);
+    }
+
+    @Override
+    public Object getObject(String s, Map<String, Class<?>> map) throws SQLException {
+        return getRealStatement().getObject(s, map);
+    }
+
+    @Override
+    public Object getObject(String s) throws SQLException {
+        return getRealStatement().getObject(s);
+    }
+
+    @Override
+    public <T> T getObject(int i, Class<T> aClass) throws SQLException {
+        return getRealStatement().getObject(i, aClass);
+    }
+
+    @Override
+    public Object getObject(int i, Map<String, Class<?>> map) throws SQLException {
+        return getRealStatement().getObject(i, map);
+    }
+
+    @Override
+    public Object getObject(int i) throws SQLException {
+        return getRealStatement().getObject(i);
+    }
+
+    @Override
+    public Ref getRef(String s) throws SQLException {
+        return getRealStatement().getRef(s);
+    }
+
+    @Override
+    public Ref getRef(int i) throws SQLException {
+        return getRealStatement().getRef(i);
+    }
+
+    @Override
+    public RowId getRowId(String s) throws SQLException {
+        return getRealStatement().getRowId(s);
+    }
+
+    @Override
+    public RowId getRowId(int i) throws SQLException {
+        return getRealStatement().getRowId(i);
+    }
+
+    @Override
+    public SQLXML getSQLXML(String s) throws SQLException {
+        return getRealStatement().getSQLXML(s);
+    }
+
+    @Override
+    public SQLXML getSQLXML(int i) throws SQLException {
+        return getRealStatement().getSQLXML(i);
+    }
+
+    @Override
+    public short getShort(String s) throws SQLException {
+        return getRealStatement().getShort(s);
+    }
+
+    @Override
+    public short getShort(int i) throws SQLException {
+        return getRealStatement().getShort(i);
+    }
+
+    @Override
+    public String getString(String s) throws SQLException {
+        return getRealStatement().getString(s);
+    }
+
+    @Override
+    public String getString(int i) throws SQLException {
+        return getRealStatement().getString(i);
+    }
+
+    @Override
+    public Time getTime(String s, Calendar calendar) throws SQLException {
+        return getRealStatement().getTime(s, calendar);
+    }
+
+    @Override
+    public Time getTime(String s) throws SQLException {
+        return getRealStatement().getTime(s);
+    }
+
+    @Override
+    public Time getTime(int i, Calendar calendar) throws SQLException {
+        return getRealStatement().getTime(i, calendar);
+    }
+
+    @Override
+    public Time getTime(int i) throws SQLException {
+        return getRealStatement().getTime(i);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String s, Calendar calendar) throws SQLException {
+        return getRealStatement().getTimestamp(s, calendar);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String s) throws SQLException {
+        return getRealStatement().getTimestamp(s);
+    }
+
+    @Override
+    public Timestamp getTimestamp(int i, Calendar calendar) throws SQLException {
+        return getRealStatement().getTimestamp(i, calendar);
+    }
+
+    @Override
+    public Timestamp getTimestamp(int i) throws SQLException {
+        return getRealStatement().getTimestamp(i);
+    }
+
+    @Override
+    public URL getURL(String s) throws SQLException {
+        return getRealStatement().getURL(s);
+    }
+
+    @Override
+    public URL getURL(int i) throws SQLException {
+        return getRealStatement().getURL(i);
+    }
+
+    @Override
+    public void registerOutParameter(String s, int i, String s1) throws SQLException {
+        getRealStatement().registerOutParameter(s, i, s1);
+    }
+
+    @Override
+    public void registerOutParameter(String s, int i, int i1) throws SQLException {
+        getRealStatement().registerOutParameter(s, i, i1);
+    }
+
+    @Override
+    public void registerOutParameter(String s, int i) throws SQLException {
+        getRealStatement().registerOutParameter(s, i);
+    }
+
+    @Override
+    public void registerOutParameter(int i, int i1, String s) throws SQLException {
+        getRealStatement().registerOutParameter(i, i1, s);
+    }
+
+    @Override
+    public void registerOutParameter(int i, int i1, int i2) throws SQLException {
+        getRealStatement().registerOutParameter(i, i1, i2);
+    }
+
+    @Override
+    public void registerOutParameter(int i, int i1) throws SQLException {
+        getRealStatement().registerOutParameter(i, i1);
+    }
+
+    @Override
+    public void setAsciiStream(String s, InputStream inputStream, int i) throws SQLException {
+        getRealStatement().setAsciiStream(s, inputStream, i);
+    }
+
+    @Override
+    public void setAsciiStream(String s, InputStream inputStream, long l) throws SQLException {
+        getRealStatement().setAsciiStream(s, inputStream, l);
+    }
+
+    @Override
+    public void setAsciiStream(String s, InputStream inputStream) throws SQLException {
+        getRealStatement().setAsciiStream(s, inputStream);
+    }
+
+    @Override
+    public void setBigDecimal(String s, BigDecimal bigDecimal) throws SQLException {
+        getRealStatement().setBigDecimal(s, bigDecimal);
+    }
+
+    @Override
+    public void setBinaryStream(String s, InputStream inputStream, int i) throws SQLException {
+        getRealStatement().setBinaryStream(s, inputStream, i);
+    }
+
+    @Override
+    public void setBinaryStream(String s, InputStream inputStream, long l) throws SQLException {
+        getRealStatement().setBinaryStream(s, inputStream, l);
+    }
+
+    @Override
+    public void setBinaryStream(String s, InputStream inputStream) throws SQLException {
+        getRealStatement().setBinaryStream(s, inputStream);
+    }
+
+    @Override
+    public void setBlob(String s, InputStream inputStream, long l) throws SQLException {
+        getRealStatement().setBlob(s, inputStream, l);
+    }
+
+    @Override
+    public void setBlob(String s, InputStream inputStream) throws SQLException {
+        getRealStatement().setBlob(s, inputStream);
+    }
+
+    @Override
+    public void setBlob(String s, Blob blob) throws SQLException {
+        getRealStatement().setBlob(s, blob);
+    }
+
+    @Override
+    public void setBoolean(String s, boolean b) throws SQLException {
+        getRealStatement().setBoolean(s, b);
+    }
+
+    @Override
+    public void setByte(String s, byte b) throws SQLException {
+        getRealStatement().setByte(s, b);
+    }
+
+    @Override
+    public void setBytes(String s, byte[] bytes) throws SQLException {
+        getRealStatement().setBytes(s, bytes);
+    }
+
+    @Override
+    public void setCharacterStream(String s, Reader reader, int i) throws SQLException {
+        getRealStatement().setCharacterStream(s, reader, i);
+    }
+
+    @Override
+    public void setCharacterStream(String s, Reader reader, long l) throws SQLException {
+        getRealStatement().setCharacterStream(s, reader, l);
+    }
+
+    @Override
+    public void setCharacterStream(String s, Reader reader) throws SQLException {
+        getRealStatement().setCharacterStream(s, reader);
+    }
+
+    @Override
+    public void setClob(String s, Reader reader, long l) throws SQLException {
+        getRealStatement().setClob(s, reader, l);
+    }
+
+    @Override
+    public void setClob(String s, Reader reader) throws SQLException {
+        getRealStatement().setClob(s, reader);
+    }
+
+    @Override
+    public void setClob(String s, Clob clob) throws SQLException {
+        getRealStatement().setClob(s, clob);
+    }
+
+    @Override
+    public void setDate(String s, java.sql.Date date, Calendar calendar) throws SQLException {
+        getRealStatement().setDate(s, date, calendar);
+    }
+
+    @Override
+    public void setDate(String s, java.sql.Date date) throws SQLException {
+        getRealStatement().setDate(s, date);
+    }
+
+    @Override
+    public void setDouble(String s, double v) throws SQLException {
+        getRealStatement().setDouble(s, v);
+    }
+
+    @Override
+    public void setFloat(String s, float v) throws SQLException {
+        getRealStatement().setFloat(s, v);
+    }
+
+    @Override
+    public void setInt(String s, int i) throws SQLException {
+        getRealStatement().setInt(s, i);
+    }
+
+    @Override
+    public void setLong(String s, long l) throws SQLException {
+        getRealStatement().setLong(s, l);
+    }
+
+    @Override
+    public void setNCharacterStream(String s, Reader reader, long l) throws SQLException {
+        getRealStatement().setNCharacterStream(s, reader, l);
+    }
+
+    @Override
+    public void setNCharacterStream(String s, Reader reader) throws SQLException {
+        getRealStatement().setNCharacterStream(s, reader);
+    }
+
+    @Override
+    public void setNClob(String s, Reader reader, long l) throws SQLException {
+        getRealStatement().setNClob(s, reader, l);
+    }
+
+    @Override
+    public void setNClob(String s, Reader reader) throws SQLException {
+        getRealStatement().setNClob(s, reader);
+    }
+
+    @Override
+    public void setNClob(String s, NClob nClob) throws SQLException {
+        getRealStatement().setNClob(s, nClob);
+    }
+
+    @Override
+    public void setNString(String s, String s1) throws SQLException {
+        getRealStatement().setNString(s, s1);
+    }
+
+    @Override
+    public void setNull(String s, int i, String s1) throws SQLException {
+        getRealStatement().setNull(s, i, s1);
+    }
+
+    @Override
+    public void setNull(String s, int i) throws SQLException {
+        getRealStatement().setNull(s, i);
+    }
+
+    @Override
+    public void setObject(String s, Object o, int i, int i1) throws SQLException {
+        getRealStatement().setObject(s, o, i, i1);
+    }
+
+    @Override
+    public void setObject(String s, Object o, int i) throws SQLException {
+        getRealStatement().setObject(s, o, i);
+    }
+
+    @Override
+    public void setObject(String s, Object o) throws SQLException {
+        getRealStatement().setObject(s, o);
+    }
+
+    @Override
+    public void setRowId(String s, RowId rowId) throws SQLException {
+        getRealStatement().setRowId(s, rowId);
+    }
+
+    @Override
+    public void setSQLXML(String s, SQLXML sqlxml) throws SQLException {
+        getRealStatement().setSQLXML(s, sqlxml);
+    }
+
+    @Override
+    public void setShort(String s, short i) throws SQLException {
+        getRealStatement().setShort(s, i);
+    }
+
+    @Override
+    public void setString(String s, String s1) throws SQLException {
+        getRealStatement().setString(s, s1);
+    }
+
+    @Override
+    public void setTime(String s, Time time, Calendar calendar) throws SQLException {
+        getRealStatement().setTime(s, time, calendar);
+    }
+
+    @Override
+    public void setTime(String s, Time time) throws SQLException {
+        getRealStatement().setTime(s, time);
+    }
+
+    @Override
+    public void setTimestamp(String s, Timestamp timestamp, Calendar calendar) throws SQLException {
+        getRealStatement().setTimestamp(s, timestamp, calendar);
+    }
+
+    @Override
+    public void setTimestamp(String s, Timestamp timestamp) throws SQLException {
+        getRealStatement().setTimestamp(s, timestamp);
+    }
+
+    @Override
+    public void setURL(String s, URL url) throws SQLException {
+        getRealStatement().setURL(s, url);
+    }
+
+    @Override
+    public boolean wasNull() throws SQLException {
+        return getRealStatement().wasNull();
+    }
+}
+
+//懒连接代理
+class LazyConnectionProxy extends AbstractConnectionProxy {
+    // close()之后的状态:
+    private static final CompletableFuture<Connection> CLOSED = new CompletableFuture<>();
+
+    private final Supplier<Connection> supplier;
+    // 唯一的状态字段:null表示尚未打开,CLOSED表示已关闭,其他值是正在打开或已经打开的Connection.
+    // 打开和关闭都通过CAS修改同一个字段,保证supplier只执行一次,并且关闭之后不会再发布新打开的Connection:
+    private final AtomicReference<CompletableFuture<Connection>> state = new AtomicReference<>();
+
+    public LazyConnectionProxy(Supplier<Connection> supplier) {
+        this.supplier = supplier;
+    }
+
+    // 预热模式:创建代理时就在后台线程中开始打开真正的Connection,第一次执行SQL时不必再等待连接握手:
+    public LazyConnectionProxy(Supplier<Connection> supplier, Executor prewarmExecutor) {
+        this.supplier = supplier;
+        this.state.set(CompletableFuture.supplyAsync(supplier, prewarmExecutor));
+    }
+
+    // 覆写close方法：只有已经打开(或正在打开)时才需要关闭:
+    public void close() throws SQLException {
+        CompletableFuture<Connection> f = state.getAndSet(CLOSED);
+        if (f != null && f != CLOSED) {
+            // 尚未打开完成时,等打开后再关闭:
+            f.thenAccept(conn -> {
+                System.out.println("Close connection: " + conn);
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    // 连接可能已经断开,忽略:
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return state.get() == CLOSED;
+    }
+
+    @Override
+    protected Connection getRealConnection() throws SQLException {
+        while (true) {
+            CompletableFuture<Connection> f = state.get();
+            if (f == null) {
+                CompletableFuture<Connection> mine = new CompletableFuture<>();
+                if (!state.compareAndSet(null, mine)) {
+                    // 其他线程抢先开始打开,它也可能已经打开失败并清除了状态,重新读取:
+                    continue;
+                }
+                // 只有CAS成功的线程才真正打开Connection,其他线程等待它的结果.
+                // 打开期间被close()时,close()已经拿到mine,打开完成后由它负责关闭:
+                try {
+                    mine.complete(supplier.get());
+                } catch (RuntimeException e) {
+                    mine.completeExceptionally(e);
+                }
+                f = mine;
+            }
+            if (f == CLOSED) {
+                throw new SQLException("Connection is closed");
+            }
+            Connection conn;
+            try {
+                // 已经打开时join()直接返回结果,不加锁:
+                conn = f.join();
+            } catch (CompletionException e) {
+                // 打开失败时清除,下一次调用可以重试:
+                state.compareAndSet(f, null);
+                Throwable cause = e.getCause();
+                if (cause != null && cause.getCause() instanceof SQLException) {
+                    // supplier把DriverManager的SQLException包装成了RuntimeException:
+                    throw (SQLException) cause.getCause();
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+            // 等待期间被close()的Connection不能再交给调用方:
+            if (state.get() != f) {
+                throw new SQLException("Connection is closed");
+            }
+            return conn;
+        }
+    }
+}
+
+//懒连接维护
+class LazyDataSource implements DataSource {
+    private final String url;
+    private final String username;
+    private final String password;
+    // 预热用的线程池,为null时不预热:
+    private final Executor prewarmExecutor;
+
+    public LazyDataSource(String url, String username, String password) {
+        this(url, username, password, null);
+    }
+
+    // 传入prewarmExecutor开启预热模式:每次getConnection()后立刻在后台打开真正的Connection
+    public LazyDataSource(String url, String username, String password, Executor prewarmExecutor) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.prewarmExecutor = prewarmExecutor;
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        Supplier<Connection> supplier = () -> {
+            try {
+                System.out.println("pre open");
+                Connection conn = DriverManager.getConnection(url, username, password);
+                System.out.println("Open connection: " + conn);
+                return conn;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        return prewarmExecutor == null ? new LazyConnectionProxy(supplier) : new LazyConnectionProxy(supplier, prewarmExecutor);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public void setLoginTimeout(int i) throws SQLException {
+
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return null;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return false;
+    }
+}
+
+//实现可复用Connection的连接池
+class PooledConnectionProxy extends AbstractConnectionProxy {
+    // 实际的Connection:
+    Connection target;
+    // 所属的连接池:
+    final PooledDataSource pool;
+    // 借用者是否设置了只读,归还时需要恢复:
+    private boolean readOnly = false;
+    // 物理连接创建时的自动提交和隔离级别,归还时恢复为这两个值:
+    private final boolean defaultAutoCommit;
+    private final int defaultTransactionIsolation;
+    // 借用者设置的自动提交和隔离级别:
+    private boolean autoCommit;
+    private int transactionIsolation;
+    // 是否已被借出,防止重复close()把同一个连接归还两次:
+    private final AtomicBoolean inUse = new AtomicBoolean();
+    // 物理连接的创建时间(System.nanoTime()):
+    final long createdAt;
+    // 最近一次归还到连接池的时间(System.nanoTime()):
+    volatile long lastReturnedAt;
+    // 最近一次借出的时间(System.nanoTime()),用于统计占用时长:
+    volatile long borrowedAt;
+    // 每个物理连接最多缓存的PreparedStatement数量,0表示不缓存:
+    private final int statementCacheSize;
+    // 空闲的PreparedStatement缓存,按访问顺序排列,超出容量时淘汰最久未使用的语句并真正关闭.
+    // 同一时刻只有借到该连接的线程会访问,所以不需要加锁:
+    private final Map<StatementKey, PreparedStatement> statementCache;
+
+    public PooledConnectionProxy(PooledDataSource pool, Connection target, int statementCacheSize) throws SQLException {
+        this.pool = pool;
+        this.target = target;
+        this.defaultAutoCommit = target.getAutoCommit();
+        this.defaultTransactionIsolation = target.getTransactionIsolation();
+        this.autoCommit = defaultAutoCommit;
+        this.transactionIsolation = defaultTransactionIsolation;
+        this.createdAt = System.nanoTime();
+        this.lastReturnedAt = this.createdAt;
+        this.statementCacheSize = statementCacheSize;
+        this.statementCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepareCached(new StatementKey(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, StatementKey.DEFAULT_HOLDABILITY));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
+        return prepareCached(new StatementKey(s, i, i1, StatementKey.DEFAULT_HOLDABILITY));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
+        return prepareCached(new StatementKey(s, i, i1, i2));
+    }
+
+    @Override
+    public void setReadOnly(boolean b) throws SQLException {
+        target.setReadOnly(b);
+        readOnly = b;
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return readOnly;
+    }
+
+    @Override
+    public void setAutoCommit(boolean b) throws SQLException {
+        target.setAutoCommit(b);
+        autoCommit = b;
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return autoCommit;
+    }
+
+    @Override
+    public void setTransactionIsolation(int i) throws SQLException {
+        target.setTransactionIsolation(i);
+        transactionIsolation = i;
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return transactionIsolation;
+    }
+
+    // 归还前恢复借用者修改过的状态,失败时返回false,该连接需要关闭.
+    // 关闭了自动提交的连接先回滚尚未提交的事务,否则下一个借用者会在这个事务中继续执行:
+    boolean resetState() {
+        try {
+            if (!autoCommit) {
+                target.rollback();
+            }
+            if (autoCommit != defaultAutoCommit) {
+                target.setAutoCommit(defaultAutoCommit);
+                autoCommit = defaultAutoCommit;
+            }
+            if (transactionIsolation != defaultTransactionIsolation) {
+                target.setTransactionIsolation(defaultTransactionIsolation);
+                transactionIsolation = defaultTransactionIsolation;
+            }
+            if (readOnly) {
+                target.setReadOnly(false);
+                readOnly = false;
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // 先从缓存中取出空闲的PreparedStatement,没有时才让数据库预编译:
+    private PreparedStatement prepareCached(StatementKey key) throws SQLException {
+        if (statementCacheSize <= 0) {
+            return key.prepare(target);
+        }
+        PreparedStatement stmt = statementCache.remove(key);
+        if (stmt == null) {
+            stmt = key.prepare(target);
+        }
+        return new CachedPreparedStatement(this, key, stmt);
+    }
+
+    // 由CachedPreparedStatement.close()调用,把语句放回缓存.
+    // limitsChanged表示借用者修改过fetchSize、maxRows或queryTimeout,需要恢复为默认值0:
+    void returnStatement(StatementKey key, PreparedStatement stmt, boolean limitsChanged) {
+        // 连接已经归还给连接池时,语句不能再放回缓存,否则可能与下一个借用者并发访问:
+        if (!inUse.get()) {
+            closeStatement(stmt);
+            return;
+        }
+        try {
+            stmt.clearParameters();
+            stmt.clearBatch();
+            stmt.clearWarnings();
+            if (limitsChanged) {
+                stmt.setFetchSize(0);
+                stmt.setMaxRows(0);
+                stmt.setQueryTimeout(0);
+            }
+        } catch (SQLException e) {
+            closeStatement(stmt);
+            return;
+        }
+        // 同一条SQL被同时打开多次时,缓存中只保留一个:
+        PreparedStatement old = statementCache.put(key, stmt);
+        if (old != null) {
+            closeStatement(old);
+        }
+    }
+
+    private static void closeStatement(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // 连接可能已经断开,忽略:
+        }
+    }
+
+    // 从连接池借出时调用:
+    void borrow(long now) {
+        borrowedAt = now;
+        inUse.set(true);
+    }
+
+    public void close() throws SQLException {
+        // 并没有调用实际Connection的close()方法,
+        // 而是把自己归还给连接池:
+        if (inUse.compareAndSet(true, false)) {
+            pool.release(this);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return !inUse.get();
+    }
+
+    // 已经归还的连接无效,否则检测物理连接:
+    @Override
+    public boolean isValid(int i) throws SQLException {
+        return inUse.get() && target.isValid(i);
+    }
+
+    protected Connection getRealConnection() {
+        return target;
+    }
+}
+
+//预编译语句缓存的key,除SQL外还要区分结果集的类型、并发模式和可保持性
+class StatementKey {
+    // 表示使用Connection默认的可保持性:
+    static final int DEFAULT_HOLDABILITY = -1;
+
+    final String sql;
+    final int resultSetType;
+    final int resultSetConcurrency;
+    final int resultSetHoldability;
+    private final int hash;
+
+    StatementKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
+        this.sql = sql;
+        this.resultSetType = resultSetType;
+        this.resultSetConcurrency = resultSetConcurrency;
+        this.resultSetHoldability = resultSetHoldability;
+        this.hash = ((sql.hashCode() * 31 + resultSetType) * 31 + resultSetConcurrency) * 31 + resultSetHoldability;
+    }
+
+    // 在实际的Connection上预编译:
+    PreparedStatement prepare(Connection conn) throws SQLException {
+        if (resultSetHoldability == DEFAULT_HOLDABILITY) {
+            return conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        return conn.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StatementKey)) {
+            return false;
+        }
+        StatementKey other = (StatementKey) o;
+        return resultSetType == other.resultSetType
+                && resultSetConcurrency == other.resultSetConcurrency
+                && resultSetHoldability == other.resultSetHoldability
+                && sql.equals(other.sql);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
+
+//借出的缓存语句,close()时并不真正关闭,而是放回所属连接的缓存
+class CachedPreparedStatement extends AbstractPreparedStatementProxy {
+    private final PooledConnectionProxy connection;
+    private final StatementKey key;
+    private final PreparedStatement target;
+    private boolean closed = false;
+    // 是否修改过fetchSize、maxRows或queryTimeout,放回缓存时需要恢复,避免影响下一个借用者:
+    private boolean limitsChanged = false;
+
+    CachedPreparedStatement(PooledConnectionProxy connection, StatementKey key, PreparedStatement target) {
+        this.connection = connection;
+        this.key = key;
+        this.target = target;
+    }
+
+    @Override
+    protected PreparedStatement getRealStatement() throws SQLException {
+        // close()之后实际的语句可能已经被其他调用方取走,不能再使用:
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        return target;
+    }
+
+    @Override
+    public void setFetchSize(int i) throws SQLException {
+        getRealStatement().setFetchSize(i);
+        limitsChanged = true;
+    }
+
+    @Override
+    public void setMaxRows(int i) throws SQLException {
+        getRealStatement().setMaxRows(i);
+        limitsChanged = true;
+    }
+
+    @Override
+    public void setQueryTimeout(int i) throws SQLException {
+        getRealStatement().setQueryTimeout(i);
+        limitsChanged = true;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            connection.returnStatement(key, target, limitsChanged);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+}
+
+//空闲队列由PooledDataSource负责维护
+class PooledDataSource implements DataSource, AutoCloseable {
+    private final String url;
+    private final String username;
+    private final String password;
+    // 最少保持的连接数:
+    private final int minPoolSize;
+    // 最多允许打开的物理连接数:
+    private final int maxPoolSize;
+    // 获取连接时最多等待的毫秒数:
+    private final long connectionTimeout;
+    // 空闲超过该时长(纳秒)的连接会被关闭,但总数不低于minPoolSize:
+    private final long idleTimeoutNanos;
+    // 物理连接最长存活时长(纳秒),到期后不再复用:
+    private final long maxLifetimeNanos;
+    // 检测连接时的超时秒数:
+    private final int validationTimeout;
+    // 检测连接用的SQL,为null时使用Connection.isValid():
+    private final String connectionTestQuery;
+    // 借出前是否检测连接,默认关闭,检测只在后台维护线程中进行:
+    private final boolean testOnBorrow;
+    // 每个物理连接缓存的PreparedStatement数量:
+    private final int statementCacheSize;
+    // 后台维护线程:
+    private final ScheduledExecutorService housekeeper;
+    // 注册到JMX的名称,未注册时为null:
+    private final ObjectName mbeanName;
+    // 连接池是否已关闭:
+    private volatile boolean closed;
+
+    // 统计信息,借还连接时只做无锁的累加:
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalCreated = new LongAdder();
+    private final LongAdder totalTimedOut = new LongAdder();
+    // 后台维护时补充连接失败的次数:
+    private final LongAdder totalFillFailures = new LongAdder();
+    // 获取连接的等待时长:
+    private final LatencyHistogram acquireTime = new LatencyHistogram();
+    // 连接从借出到归还的占用时长:
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+
+    // 维护一个空闲栈,后进先出让刚归还的连接优先被复用,ConcurrentLinkedDeque无锁,大量线程同时借还也不会互相阻塞:
+    private final Deque<PooledConnectionProxy> idleConnections = new ConcurrentLinkedDeque<>();
+    // 每个借出(或正在打开)的连接占用一个许可,公平模式保证先等待的线程先拿到连接:
+    private final Semaphore permits;
+    // 已打开的物理连接总数(空闲+借出):
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    public PooledDataSource(String url, String username, String password) {
+        this(PooledDataSourceBuilder.builder().setUrl(url).setUsername(username).setPassword(password));
+    }
+
+    PooledDataSource(PooledDataSourceBuilder builder) {
+        if (builder.maxPoolSize < 1 || builder.minPoolSize < 0 || builder.minPoolSize > builder.maxPoolSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + builder.minPoolSize + ", max=" + builder.maxPoolSize);
+        }
+        if (builder.connectionTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid connection timeout: " + builder.connectionTimeout);
+        }
+        if (builder.validationTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid validation timeout: " + builder.validationTimeout);
+        }
+        if (builder.statementCacheSize < 0) {
+            throw new IllegalArgumentException("Invalid statement cache size: " + builder.statementCacheSize);
+        }
+        this.url = builder.url;
+        this.username = builder.username;
+        this.password = builder.password;
+        this.minPoolSize = builder.minPoolSize;
+        this.maxPoolSize = builder.maxPoolSize;
+        this.connectionTimeout = builder.connectionTimeout;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(builder.idleTimeout);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxLifetime);
+        this.validationTimeout = builder.validationTimeout;
+        this.connectionTestQuery = builder.connectionTestQuery;
+        this.testOnBorrow = builder.testOnBorrow;
+        this.statementCacheSize = builder.statementCacheSize;
+        this.permits = new Semaphore(builder.maxPoolSize, true);
+        // 先注册MBean再启动后台维护线程,注册失败时不会留下无人关闭的线程:
+        if (builder.registerMbeans) {
+            try {
+                this.mbeanName = new ObjectName("com.me:type=PooledDataSource,name=" + ObjectName.quote(builder.poolName));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new PooledDataSourceMBean(this), mbeanName);
+            } catch (JMException e) {
+                throw new IllegalStateException("Failed to register MBean for pool " + builder.poolName, e);
+            }
+        } else {
+            this.mbeanName = null;
+        }
+        if (builder.housekeepingPeriod > 0) {
+            this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, builder.poolName + "-housekeeper");
+                t.setDaemon(true);
+                return t;
+            });
+            this.housekeeper.scheduleWithFixedDelay(this::housekeep, builder.housekeepingPeriod,
+                    builder.housekeepingPeriod, TimeUnit.MILLISECONDS);
+        } else {
+            this.housekeeper = null;
+        }
+    }
+
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (closed) {
+            throw new SQLException("Pool is closed");
+        }
+        long start = System.nanoTime();
+        if (totalConnections.get() < minPoolSize) {
+            fillPool();
+        }
+        // 首先拿到一个许可,连接池已满时最多等待connectionTimeout毫秒:
+        try {
+            if (!permits.tryAcquire(connectionTimeout, TimeUnit.MILLISECONDS)) {
+                totalTimedOut.increment();
+                throw new SQLTransientConnectionException("Connection is not available, request timed out after "
+                        + connectionTimeout + "ms (total=" + totalConnections.get() + ", max=" + maxPoolSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            // 优先复用空闲连接,没有空闲连接时打开一个新连接.
+            // 持有许可的线程数不超过maxPoolSize,所以这里打开新连接不会超过上限:
+            PooledConnectionProxy conn;
+            while ((conn = idleConnections.pollFirst()) != null) {
+                if (!testOnBorrow || isAlive(conn)) {
+                    break;
+                }
+                closeConnection(conn);
+            }
+            if (conn == null) {
+                conn = openNewConnection();
+            }
+            long now = System.nanoTime();
+            acquireTime.record(now - start);
+            activeConnections.increment();
+            conn.borrow(now);
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // 由PooledConnectionProxy.close()调用,把连接放回空闲栈并归还许可:
+    void release(PooledConnectionProxy conn) {
+        long now = System.nanoTime();
+        holdTime.record(now - conn.borrowedAt);
+        activeConnections.decrement();
+        if (closed || isExpired(conn, now) || !conn.resetState()) {
+            // 连接池已关闭、超过最长存活时间或无法恢复状态,直接关闭:
+            closeConnection(conn);
+        } else {
+            conn.lastReturnedAt = now;
+            idleConnections.offerFirst(conn);
+        }
+        permits.release();
+    }
+
+    // 后台维护:检测空闲连接,关闭失效、空闲过久和超过最长存活时间的连接,再补足minPoolSize.
+    // 检测通过的连接会重新放回队尾,所以先取快照,每轮只检测开始时已经空闲的连接:
+    void housekeep() {
+        for (PooledConnectionProxy conn : idleConnections.toArray(new PooledConnectionProxy[0])) {
+            // 检测期间该连接不在空闲栈中,占用一个许可保证总数不超过maxPoolSize.
+            // 拿不到许可说明连接全部借出,本轮不必再检测:
+            if (!permits.tryAcquire()) {
+                break;
+            }
+            try {
+                // 已被借出的连接跳过:
+                if (!idleConnections.removeFirstOccurrence(conn)) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                boolean idleTooLong = idleTimeoutNanos > 0 && now - conn.lastReturnedAt > idleTimeoutNanos
+                        && totalConnections.get() > minPoolSize;
+                if (idleTooLong || isExpired(conn, now) || !isAlive(conn)) {
+                    closeConnection(conn);
+                } else {
+                    idleConnections.offerLast(conn);
+                }
+            } finally {
+                permits.release();
+            }
+        }
+        try {
+            fillPool();
+        } catch (SQLException | RuntimeException e) {
+            // 数据库暂时不可用,下一轮再补充.失败次数通过getStats()和JMX查看:
+            totalFillFailures.increment();
+        }
+    }
+
+    private boolean isExpired(PooledConnectionProxy conn, long now) {
+        return maxLifetimeNanos > 0 && now - conn.createdAt > maxLifetimeNanos;
+    }
+
+    // 检测物理连接是否可用:
+    private boolean isAlive(PooledConnectionProxy conn) {
+        try {
+            if (connectionTestQuery == null) {
+                return conn.target.isValid(validationTimeout);
+            }
+            try (Statement stmt = conn.target.createStatement()) {
+                stmt.setQueryTimeout(validationTimeout);
+                stmt.execute(connectionTestQuery);
+                return true;
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // 真正关闭物理连接:
+    private void closeConnection(PooledConnectionProxy conn) {
+        totalConnections.decrementAndGet();
+        try {
+            conn.target.close();
+        } catch (SQLException e) {
+            // 连接可能已经断开,忽略:
+        }
+    }
+
+    // 关闭连接池:停止后台维护线程并关闭所有空闲连接,借出中的连接在归还时关闭:
+    @Override
+    public void close() {
+        closed = true;
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                // 已被注销,忽略:
+            }
+        }
+        PooledConnectionProxy conn;
+        while ((conn = idleConnections.pollFirst()) != null) {
+            closeConnection(conn);
+        }
+    }
+
+    // 补充空闲连接直到达到minPoolSize,补充时同样占用许可,保证总数不超过maxPoolSize:
+    private void fillPool() throws SQLException {
+        for (;;) {
+            int total = totalConnections.get();
+            if (total >= minPoolSize || !permits.tryAcquire()) {
+                return;
+            }
+            try {
+                if (totalConnections.get() != total) {
+                    continue;
+                }
+                idleConnections.offerLast(openNewConnection());
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private PooledConnectionProxy openNewConnection() throws SQLException {
+        totalConnections.incrementAndGet();
+        try {
+            Connection conn = DriverManager.getConnection(url, username, password);
+            totalCreated.increment();
+            try {
+                return new PooledConnectionProxy(this, conn, statementCacheSize);
+            } catch (SQLException | RuntimeException e) {
+                // 读取连接的默认状态失败,关闭刚打开的连接:
+                try {
+                    conn.close();
+                } catch (SQLException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        } catch (SQLException | RuntimeException e) {
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(username, password);
+    }
+
+    // 获取当前统计快照,可以定时轮询:
+    public PoolStats getStats() {
+        return new PoolStats(activeConnections.intValue(), idleConnections.size(), permits.getQueueLength(),
+                totalConnections.get(), totalCreated.sum(), totalTimedOut.sum(), totalFillFailures.sum(),
+                acquireTime.snapshot(), holdTime.snapshot());
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public void setLoginTimeout(int i) throws SQLException {
+
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return null;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return false;
+    }
+
+}
+
+
+//PooledDataSource的配置项较多,用Builder以链式调用的方式创建
+class PooledDataSourceBuilder {
+    String url;
+    String username;
+    String password;
+    int minPoolSize = 0;
+    int maxPoolSize = 10;
+    long connectionTimeout = 30_000;
+    long idleTimeout = 600_000;
+    long maxLifetime = 1_800_000;
+    long housekeepingPeriod = 30_000;
+    int validationTimeout = 5;
+    String connectionTestQuery;
+    boolean testOnBorrow = false;
+    int statementCacheSize = 64;
+    String poolName = "PooledDataSource";
+    boolean registerMbeans = false;
+
+    public static PooledDataSourceBuilder builder() {
+        return new PooledDataSourceBuilder();
+    }
+
+    public PooledDataSourceBuilder setUrl(String url) {
+        this.url = url;
+        return this;
+    }
+
+    public PooledDataSourceBuilder setUsername(String username) {
+        this.username = username;
+        return this;
+    }
+
+    public PooledDataSourceBuilder setPassword(String password) {
+        this.password = password;
+        return this;
+    }
+
+    public PooledDataSourceBuilder setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+        return this;
+    }
+
+    public PooledDataSourceBuilder setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+        return this;
+    }
+
+    // 单位:毫秒
+    public PooledDataSourceBuilder setConnectionTimeout(long connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        return this;
+    }
+
+    // 单位:毫秒,0表示不按空闲时间关闭
+    public PooledDataSourceBuilder setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    // 单位:毫秒,0表示不限制
+    public PooledDataSourceBuilder setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        return this;
+    }
+
+    // 单位:毫秒,0表示不启动后台维护线程
+    public PooledDataSourceBuilder setHousekeepingPeriod(long housekeepingPeriod) {
+        this.housekeepingPeriod = housekeepingPeriod;
+        return this;
+    }
+
+    // 单位:秒
+    public PooledDataSourceBuilder setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+        return this;
+    }
+
+    // 例如"SELECT 1",不设置时使用Connection.isValid()
+    public PooledDataSourceBuilder setConnectionTestQuery(String connectionTestQuery) {
+        this.connectionTestQuery = connectionTestQuery;
+        return this;
+    }
+
+    public PooledDataSourceBuilder setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+        return this;
+    }
+
+    // 每个物理连接缓存的PreparedStatement数量,0表示不缓存
+    public PooledDataSourceBuilder setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+        return this;
+    }
+
+    public PooledDataSourceBuilder setPoolName(String poolName) {
+        this.poolName = poolName;
+        return this;
+    }
+
+    // 是否把统计信息注册为JMX MBean(com.me:type=PooledDataSource,name=poolName)
+    public PooledDataSourceBuilder setRegisterMbeans(boolean registerMbeans) {
+        this.registerMbeans = registerMbeans;
+        return this;
+    }
+
+    public PooledDataSource build() {
+        return new PooledDataSource(this);
+    }
+}
+
+//仿照HdrHistogram的对数分桶直方图:按2的幂分段,每段再等分16个子桶,相对误差不超过1/16.
+// 记录时只对一个桶做原子累加,不加锁,可以在生产环境中一直开启
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 小于16的值各占一个桶,其余每个2的幂占16个桶:
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    // 每个桶一个LongAdder,大量线程落在同一个桶时也不会争用同一个CAS:
+    private final LongAdder[] counts = new LongAdder[BUCKET_COUNT];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    // 记录一个值,单位:纳秒
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketIndex(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts[i].sum();
+        }
+        return new LatencySnapshot(copy, sum.sum(), max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    // 落在该桶中的最大值:
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exp = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKET_COUNT;
+        long lowest = (long) (SUB_BUCKET_COUNT + sub) << (exp - SUB_BUCKET_BITS);
+        return lowest + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+}
+
+//LatencyHistogram某一时刻的快照,单位:纳秒
+class LatencySnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    LatencySnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        long n = 0;
+        for (long c : counts) {
+            n += c;
+        }
+        this.count = n;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    // 例如getValueAtPercentile(99)返回p99:
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d, mean=%.1fus, p50=%dus, p99=%dus, p999=%dus, max=%dus",
+                count, getMean() / 1000, getValueAtPercentile(50) / 1000, getValueAtPercentile(99) / 1000,
+                getValueAtPercentile(99.9) / 1000, max / 1000);
+    }
+}
+
+//连接池某一时刻的统计快照
+class PoolStats {
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int pendingThreads;
+    private final int totalConnections;
+    private final long totalCreated;
+    private final long totalTimedOut;
+    private final long totalFillFailures;
+    private final LatencySnapshot acquireTime;
+    private final LatencySnapshot holdTime;
+
+    public PoolStats(int activeConnections, int idleConnections, int pendingThreads, int totalConnections,
+                     long totalCreated, long totalTimedOut, long totalFillFailures,
+                     LatencySnapshot acquireTime, LatencySnapshot holdTime) {
+        this.activeConnections = activeConnections;
+        this.idleConnections = idleConnections;
+        this.pendingThreads = pendingThreads;
+        this.totalConnections = totalConnections;
+        this.totalCreated = totalCreated;
+        this.totalTimedOut = totalTimedOut;
+        this.totalFillFailures = totalFillFailures;
+        this.acquireTime = acquireTime;
+        this.holdTime = holdTime;
+    }
+
+    // 借出中的连接数:
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    // 正在等待连接的线程数(估计值):
+    public int getPendingThreads() {
+        return pendingThreads;
+    }
+
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+    // 累计打开的物理连接数:
+    public long getTotalCreated() {
+        return totalCreated;
+    }
+
+    // 累计获取连接超时的次数:
+    public long getTotalTimedOut() {
+        return totalTimedOut;
+    }
+
+    // 后台维护补充最小空闲连接时,累计打开连接失败的次数:
+    public long getTotalFillFailures() {
+        return totalFillFailures;
+    }
+
+    public LatencySnapshot getAcquireTime() {
+        return acquireTime;
+    }
+
+    public LatencySnapshot getHoldTime() {
+        return holdTime;
+    }
+
+    @Override
+    public String toString() {
+        return "PoolStats{" +
+                "active=" + activeConnections +
+                ", idle=" + idleConnections +
+                ", pending=" + pendingThreads +
+                ", total=" + totalConnections +
+                ", totalCreated=" + totalCreated +
+                ", totalTimedOut=" + totalTimedOut +
+                ", totalFillFailures=" + totalFillFailures +
+                ", acquireTime={" + acquireTime + '}' +
+                ", holdTime={" + holdTime + '}' +
+                '}';
+    }
+}
+
+//把PoolStats暴露为JMX属性.
+// 标准MBean要求接口是public的,这里实现DynamicMBean,按属性名读取快照
+class PooledDataSourceMBean implements DynamicMBean {
+    private static final String[] ATTRIBUTES = {
+            "ActiveConnections", "IdleConnections", "PendingThreads", "TotalConnections",
+            "TotalCreated", "TotalTimedOut", "TotalFillFailures",
+            "AcquireTimeP50Micros", "AcquireTimeP99Micros", "AcquireTimeMaxMicros",
+            "HoldTimeP50Micros", "HoldTimeP99Micros", "HoldTimeMaxMicros"
+    };
+
+    private final PooledDataSource pool;
+
+    public PooledDataSourceMBean(PooledDataSource pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        return getAttribute(pool.getStats(), attribute);
+    }
+
+    private static Object getAttribute(PoolStats stats, String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case "ActiveConnections":
+                return stats.getActiveConnections();
+            case "IdleConnections":
+                return stats.getIdleConnections();
+            case "PendingThreads":
+                return stats.getPendingThreads();
+            case "TotalConnections":
+                return stats.getTotalConnections();
+            case "TotalCreated":
+                return stats.getTotalCreated();
+            case "TotalTimedOut":
+                return stats.getTotalTimedOut();
+            case "TotalFillFailures":
+                return stats.getTotalFillFailures();
+            case "AcquireTimeP50Micros":
+                return stats.getAcquireTime().getValueAtPercentile(50) / 1000;
+            case "AcquireTimeP99Micros":
+                return stats.getAcquireTime().getValueAtPercentile(99) / 1000;
+            case "AcquireTimeMaxMicros":
+                return stats.getAcquireTime().getMax() / 1000;
+            case "HoldTimeP50Micros":
+                return stats.getHoldTime().getValueAtPercentile(50) / 1000;
+            case "HoldTimeP99Micros":
+                return stats.getHoldTime().getValueAtPercentile(99) / 1000;
+            case "HoldTimeMaxMicros":
+                return stats.getHoldTime().getMax() / 1000;
+            default:
+                throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        // 同一次读取使用同一个快照:
+        PoolStats stats = pool.getStats();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(stats, attribute)));
+            } catch (AttributeNotFoundException e) {
+                // 忽略不存在的属性:
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read-only attribute: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] infos = new MBeanAttributeInfo[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            String type = i < 4 ? "int" : "long";
+            infos[i] = new MBeanAttributeInfo(ATTRIBUTES[i], type, ATTRIBUTES[i], true, false, false);
+        }
+        return new MBeanInfo(PooledDataSourceMBean.class.getName(), "PooledDataSource statistics",
+                infos, null, null, null);
+    }
+}
+
+//虚拟线程压测:在JDK 21上运行 mvn -Pjdk21 compile exec:exec
+// 启动大量虚拟线程同时从PooledDataSource借用连接并执行查询,PooledDataSource只使用Semaphore和原子变量,
+// 等待连接时虚拟线程只是park,不会固定(pin)载体线程.
+// 运行时打开-Djdk.tracePinnedThreads=full,JVM会把被固定的虚拟线程栈打印到System.out,检测到时以非0状态退出.
+// 默认连接FakeDriver,不需要MySQL;传入MySQL的url、用户名和口令可以连同驱动一起检查
+class VirtualThreadPoolLoadTest {
+    public static void main(String[] args) throws Exception {
+        FakeDriver.register();
+        String url = args.length > 0 ? args[0] : "jdbc:fake://vt?connectLatencyMs=20&queryLatencyMs=1";
+        String username = args.length > 1 ? args[1] : "xylx";
+        String password = args.length > 2 ? args[2] : "1934";
+        int tasks = args.length > 3 ? Integer.parseInt(args[3]) : 20_000;
+        int maxPoolSize = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        PinnedThreadDetector detector = new PinnedThreadDetector(System.out);
+        System.setOut(new PrintStream(detector, true));
+        int failures = 0;
+        long start = System.nanoTime();
+        try (PooledDataSource ds = PooledDataSourceBuilder.builder()
+                .setUrl(url)
+                .setUsername(username)
+                .setPassword(password)
+                .setMaxPoolSize(maxPoolSize)
+                .setConnectionTimeout(120_000)
+                .build()) {
+            ExecutorService executor = newVirtualThreadExecutor();
+            List<Future<?>> futures = new ArrayList<>(tasks);
+            for (int i = 0; i < tasks; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Connection conn = ds.getConnection();
+                         PreparedStatement ps = conn.prepareStatement("SELECT 1");
+                         ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    failures++;
+                }
+            }
+            executor.shutdown();
+            System.out.println(ds.getStats());
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(tasks + " tasks in " + millis + "ms, failures=" + failures + ", pinned=" + detector.getPinnedCount());
+        System.exit(failures == 0 && detector.getPinnedCount() == 0 ? 0 : 1);
+    }
+
+    // 通过反射调用Executors.newVirtualThreadPerTaskExecutor(),这样在JDK 11上也能编译:
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21+", e);
+        }
+    }
+}
+
+//原样输出,同时统计jdk.tracePinnedThreads打印的被固定线程栈
+class PinnedThreadDetector extends OutputStream {
+    private final OutputStream out;
+    private final StringBuilder line = new StringBuilder();
+    private int pinnedCount = 0;
+
+    PinnedThreadDetector(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        out.write(b);
+        if (b == '\n') {
+            // 持有监视器锁的栈帧会被标记为"<== monitors:n":
+            if (line.indexOf("<== monitors") >= 0) {
+                pinnedCount++;
+            }
+            line.setLength(0);
+        } else {
+            line.append((char) b);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    public synchronized int getPinnedCount() {
+        return pinnedCount;
+    }
+}
+
+//读写分离:一个主库连接池加多个从库连接池.
+// 借出的连接在第一次执行SQL时才选择数据库:setReadOnly(true)的连接发往从库,其他连接发往主库.
+// 从库按未归还的连接数最少选择,连续失败达到阈值的从库暂时移出,由后台线程检测恢复后再加入;没有可用从库时读请求也发往主库
+class RoutingDataSource implements DataSource, AutoCloseable {
+    private final RoutingNode primary;
+    private final RoutingNode[] replicas;
+    // 连续失败多少次后把从库移出:
+    private final int failureThreshold;
+    // 后台检测被移出的从库,为null表示不检测:
+    private final ScheduledExecutorService healthChecker;
+
+    public RoutingDataSource(PooledDataSource primary, List<PooledDataSource> replicas) {
+        this(primary, replicas, 5000, 3);
+    }
+
+    public RoutingDataSource(PooledDataSource primary, List<PooledDataSource> replicas, long healthCheckPeriodMillis, int failureThreshold) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("Invalid failureThreshold: " + failureThreshold);
+        }
+        this.primary = new RoutingNode(primary);
+        this.replicas = new RoutingNode[replicas.size()];
+        for (int i = 0; i < this.replicas.length; i++) {
+            this.replicas[i] = new RoutingNode(replicas.get(i));
+        }
+        this.failureThreshold = failureThreshold;
+        if (healthCheckPeriodMillis > 0 && this.replicas.length > 0) {
+            this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "RoutingDataSource-health-check");
+                t.setDaemon(true);
+                return t;
+            });
+            this.healthChecker.scheduleWithFixedDelay(this::checkReplicas, healthCheckPeriodMillis,
+                    healthCheckPeriodMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.healthChecker = null;
+        }
+    }
+
+    // 由RoutingConnectionProxy在第一次执行SQL时调用:
+    RoutingNode route(boolean readOnly) {
+        if (!readOnly) {
+            return primary;
+        }
+        // 从随机位置开始找未归还连接最少的从库,数量相同时不会总是落在同一个从库上:
+        RoutingNode best = null;
+        int n = replicas.length;
+        int start = n > 1 ? ThreadLocalRandom.current().nextInt(n) : 0;
+        for (int i = 0; i < n; i++) {
+            RoutingNode node = replicas[(start + i) % n];
+            if (node.healthy && (best == null || node.outstanding.get() < best.outstanding.get())) {
+                best = node;
+            }
+        }
+        return best != null ? best : primary;
+    }
+
+    // 从选中的数据库借一个连接,从库失败时换下一个可用的从库,最后换主库:
+    Connection open(RoutingNode node, boolean readOnly) throws SQLException {
+        while (true) {
+            node.outstanding.incrementAndGet();
+            try {
+                Connection conn = node.dataSource.getConnection();
+                node.consecutiveFailures.set(0);
+                return conn;
+            } catch (SQLException e) {
+                node.outstanding.decrementAndGet();
+                if (node == primary) {
+                    throw e;
+                }
+                if (node.consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                    node.healthy = false;
+                }
+                node = route(readOnly);
+            }
+        }
+    }
+
+    // 被移出的从库能借到有效连接时重新加入:
+    private void checkReplicas() {
+        for (RoutingNode node : replicas) {
+            if (node.healthy) {
+                continue;
+            }
+            try (Connection conn = node.dataSource.getConnection()) {
+                if (conn.isValid(5)) {
+                    node.consecutiveFailures.set(0);
+                    node.healthy = true;
+                }
+            } catch (SQLException e) {
+                // 仍然不可用,下次再检测:
+            }
+        }
+    }
+
+    // 当前可用的从库数量:
+    public int getHealthyReplicaCount() {
+        int count = 0;
+        for (RoutingNode node : replicas) {
+            if (node.healthy) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        primary.dataSource.close();
+        for (RoutingNode node : replicas) {
+            node.dataSource.close();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return new RoutingConnectionProxy(this);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Credentials are configured on each pool");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+        primary.dataSource.setLogWriter(printWriter);
+    }
+
+    @Override
+    public void setLoginTimeout(int i) throws SQLException {
+        primary.dataSource.setLoginTimeout(i);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return primary.dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return null;
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return false;
+    }
+}
+
+//RoutingDataSource中的一个数据库
+class RoutingNode {
+    final PooledDataSource dataSource;
+    // 从该数据库借出、尚未归还的连接数:
+    final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    volatile boolean healthy = true;
+
+    RoutingNode(PooledDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+}
+
+//RoutingDataSource借出的连接:记录只读、自动提交和隔离级别,第一次执行SQL时才借用实际的连接.
+// 和PooledConnectionProxy一样只由借用者线程访问,不加锁
+class RoutingConnectionProxy extends AbstractConnectionProxy {
+    private final RoutingDataSource router;
+    private RoutingNode node;
+    private Connection target;
+    private boolean readOnly = false;
+    private boolean autoCommit = true;
+    // -1表示使用数据库默认的隔离级别:
+    private int transactionIsolation = -1;
+    private boolean closed = false;
+
+    RoutingConnectionProxy(RoutingDataSource router) {
+        this.router = router;
+    }
+
+    @Override
+    protected Connection getRealConnection() throws SQLException {
+        if (target != null) {
+            return target;
+        }
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        RoutingNode selected = router.route(readOnly);
+        Connection conn = router.open(selected, readOnly);
+        // 连接可能来自连接池并带着上一个借用者的状态,每次都显式设置,不依赖连接的默认值.
+        // 未指定隔离级别时使用数据库默认值,由连接池在归还时恢复:
+        try {
+            conn.setReadOnly(readOnly);
+            conn.setAutoCommit(autoCommit);
+            if (transactionIsolation >= 0) {
+                conn.setTransactionIsolation(transactionIsolation);
+            }
+        } catch (SQLException e) {
+            release(selected, conn);
+            throw e;
+        }
+        node = selected;
+        target = conn;
+        return conn;
+    }
+
+    private void release(RoutingNode node, Connection conn) throws SQLException {
+        node.outstanding.decrementAndGet();
+        conn.close();
+    }
+
+    @Override
+    public void setReadOnly(boolean b) throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        if (b == readOnly) {
+            return;
+        }
+        if (target != null) {
+            // 事务中途不能换数据库;自动提交时归还当前连接,下一条SQL重新选择:
+            if (!autoCommit) {
+                throw new SQLException("Cannot change read-only mode inside a transaction");
+            }
+            Connection conn = target;
+            target = null;
+            release(node, conn);
+            node = null;
+        }
+        readOnly = b;
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return readOnly;
+    }
+
+    @Override
+    public void setAutoCommit(boolean b) throws SQLException {
+        if (target != null) {
+            target.setAutoCommit(b);
+        }
+        autoCommit = b;
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return autoCommit;
+    }
+
+    @Override
+    public void setTransactionIsolation(int i) throws SQLException {
+        if (target != null) {
+            target.setTransactionIsolation(i);
+        }
+        transactionIsolation = i;
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return target != null || transactionIsolation < 0 ? getRealConnection().getTransactionIsolation() : transactionIsolation;
+    }
+
+    // 还没有执行过SQL时没有需要提交或回滚的内容,不必借用连接:
+    @Override
+    public void commit() throws SQLException {
+        if (target != null) {
+            target.commit();
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        if (target != null) {
+            target.rollback();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (target != null) {
+            Connection conn = target;
+            target = null;
+            release(node, conn);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public boolean isValid(int i) throws SQLException {
+        return !closed && (target == null || target.isValid(i));
+    }
+}
+
+//JDBC拦截器:在执行SQL、提交和回滚前后回调,只需要覆写关心的方法.
+// 多个拦截器在同一层代理中依次调用,叠加拦截器不会增加代理的层数
+interface JdbcInterceptor {
+    // 执行SQL前调用,抛出SQLException可以阻止执行.批量执行时sql为最后一条加入批量的语句:
+    default void beforeExecute(String sql) throws SQLException {
+    }
+
+    // 执行结束后调用,failure为null表示成功:
+    default void afterExecute(String sql, long elapsedNanos, SQLException failure) {
+    }
+
+    default void beforeCommit() throws SQLException {
+    }
+
+    default void beforeRollback() throws SQLException {
+    }
+
+    // 可以替换查询返回的ResultSet.默认原样返回,读取结果时没有额外开销:
+    default ResultSet onResultSet(String sql, ResultSet rs) throws SQLException {
+        return rs;
+    }
+}
+
+//不可变的拦截器数组,执行前按顺序、执行后按相反顺序调用
+final class InterceptorChain {
+    private final JdbcInterceptor[] interceptors;
+    // 有拦截器覆写了afterExecute()时才需要计时,System.nanoTime()本身的开销比一次空的拦截调用大得多:
+    private final boolean timed;
+
+    InterceptorChain(JdbcInterceptor[] interceptors) {
+        this.interceptors = interceptors;
+        boolean timed = false;
+        for (JdbcInterceptor interceptor : interceptors) {
+            try {
+                timed |= interceptor.getClass().getMethod("afterExecute", String.class, long.class, SQLException.class)
+                        .getDeclaringClass() != JdbcInterceptor.class;
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        this.timed = timed;
+    }
+
+    // 返回追加了拦截器的新链,原链不变:
+    InterceptorChain append(JdbcInterceptor[] more) {
+        JdbcInterceptor[] merged = Arrays.copyOf(interceptors, interceptors.length + more.length);
+        System.arraycopy(more, 0, merged, interceptors.length, more.length);
+        return new InterceptorChain(merged);
+    }
+
+    // 返回开始时间,传给after():
+    long before(String sql) throws SQLException {
+        for (JdbcInterceptor interceptor : interceptors) {
+            interceptor.beforeExecute(sql);
+        }
+        return timed ? System.nanoTime() : 0;
+    }
+
+    void after(String sql, long start, SQLException failure) {
+        if (!timed) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        for (int i = interceptors.length - 1; i >= 0; i--) {
+            interceptors[i].afterExecute(sql, elapsed, failure);
+        }
+    }
+
+    ResultSet resultSet(String sql, ResultSet rs) throws SQLException {
+        for (JdbcInterceptor interceptor : interceptors) {
+            rs = interceptor.onResultSet(sql, rs);
+        }
+        return rs;
+    }
+
+    void beforeCommit() throws SQLException {
+        for (JdbcInterceptor interceptor : interceptors) {
+            interceptor.beforeCommit();
+        }
+    }
+
+    void beforeRollback() throws SQLException {
+        for (JdbcInterceptor interceptor : interceptors) {
+            interceptor.beforeRollback();
+        }
+    }
+}
+
+//创建拦截代理:没有拦截器时直接返回原对象;对已经拦截过的对象再次拦截时合并拦截器,始终只有一层代理
+class JdbcProxies {
+    public static Connection intercept(Connection conn, JdbcInterceptor... interceptors) {
+        if (interceptors.length == 0) {
+            return conn;
+        }
+        if (conn instanceof InterceptingConnection) {
+            InterceptingConnection ic = (InterceptingConnection) conn;
+            return new InterceptingConnection(ic.target, ic.chain.append(interceptors));
+        }
+        return new InterceptingConnection(conn, new InterceptorChain(interceptors.clone()));
+    }
+
+    public static DataSource intercept(DataSource dataSource, JdbcInterceptor... interceptors) {
+        if (interceptors.length == 0) {
+            return dataSource;
+        }
+        if (dataSource instanceof InterceptingDataSource) {
+            InterceptingDataSource ids = (InterceptingDataSource) dataSource;
+            return new InterceptingDataSource(ids.target, ids.chain.append(interceptors));
+        }
+        return new InterceptingDataSource(dataSource, new InterceptorChain(interceptors.clone()));
+    }
+}
+
+//借出的连接都经过同一个拦截器链
+class InterceptingDataSource implements DataSource {
+    final DataSource target;
+    final InterceptorChain chain;
+
+    InterceptingDataSource(DataSource target, InterceptorChain chain) {
+        this.target = target;
+        this.chain = chain;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return new InterceptingConnection(target.getConnection(), chain);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return new InterceptingConnection(target.getConnection(username, password), chain);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+        target.setLogWriter(printWriter);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    @Override
+    public void setLoginTimeout(int i) throws SQLException {
+        target.setLoginTimeout(i);
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return target.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return target.unwrap(aClass);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return target.isWrapperFor(aClass);
+    }
+}
+
+//拦截代理的Connection:只在创建语句、提交和回滚时介入,其他方法直接转发.
+// AbstractConnectionProxy中没有转发的方法(元数据、警告、catalog、schema等)在这里全部转发给target,代理对调用方透明
+class InterceptingConnection extends AbstractConnectionProxy {
+    final Connection target;
+    final InterceptorChain chain;
+
+    InterceptingConnection(Connection target, InterceptorChain chain) {
+        this.target = target;
+        this.chain = chain;
+    }
+
+    @Override
+    protected Connection getRealConnection() {
+        return target;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new InterceptingStatement(this, target.createStatement());
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1) throws SQLException {
+        return new InterceptingStatement(this, target.createStatement(i, i1));
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1, int i2) throws SQLException {
+        return new InterceptingStatement(this, target.createStatement(i, i1, i2));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s) throws SQLException {
+        return new InterceptingPreparedStatement(this, target.prepareStatement(s), s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i) throws SQLException {
+        return new InterceptingPreparedStatement(this, target.prepareStatement(s, i), s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
+        return new InterceptingPreparedStatement(this, target.prepareStatement(s, ints), s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
+        return new InterceptingPreparedStatement(this, target.prepareStatement(s, strings), s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
+        return new InterceptingPreparedStatement(this, target.prepareStatement(s, i, i1), s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
+        return new InterceptingPreparedStatement(this, target.prepareStatement(s, i, i1, i2), s);
+    }
+
+    // 存储过程的执行同样经过拦截器链:
+    @Override
+    public CallableStatement prepareCall(String s) throws SQLException {
+        return new InterceptingCallableStatement(this, target.prepareCall(s), s);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s, int i, int i1) throws SQLException {
+        return new InterceptingCallableStatement(this, target.prepareCall(s, i, i1), s);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String s, int i, int i1, int i2) throws SQLException {
+        return new InterceptingCallableStatement(this, target.prepareCall(s, i, i1, i2), s);
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        chain.beforeCommit();
+        target.commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        chain.beforeRollback();
+        target.rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        target.close();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return target.isClosed();
+    }
+
+    @Override
+    public boolean isValid(int i) throws SQLException {
+        return target.isValid(i);
+    }
+
+    @Override
+    public String nativeSQL(String s) throws SQLException {
+        return target.nativeSQL(s);
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return target.getMetaData();
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return target.getCatalog();
+    }
+
+    @Override
+    public void setCatalog(String s) throws SQLException {
+        target.setCatalog(s);
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return target.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        target.clearWarnings();
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return target.getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        target.setTypeMap(map);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return target.getHoldability();
+    }
+
+    @Override
+    public void setHoldability(int i) throws SQLException {
+        target.setHoldability(i);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return target.createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return target.createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return target.createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return target.createSQLXML();
+    }
+
+    @Override
+    public void setClientInfo(String s, String s1) throws SQLClientInfoException {
+        target.setClientInfo(s, s1);
+    }
+
+    @Override
+    public String getClientInfo(String s) throws SQLException {
+        return target.getClientInfo(s);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return target.getClientInfo();
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        target.setClientInfo(properties);
+    }
+
+    @Override
+    public Array createArrayOf(String s, Object[] objects) throws SQLException {
+        return target.createArrayOf(s, objects);
+    }
+
+    @Override
+    public Struct createStruct(String s, Object[] objects) throws SQLException {
+        return target.createStruct(s, objects);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return target.getSchema();
+    }
+
+    @Override
+    public void setSchema(String s) throws SQLException {
+        target.setSchema(s);
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        target.abort(executor);
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int i) throws SQLException {
+        target.setNetworkTimeout(executor, i);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return target.getNetworkTimeout();
+    }
+
+    @Override
+    public void beginRequest() throws SQLException {
+        target.beginRequest();
+    }
+
+    @Override
+    public void endRequest() throws SQLException {
+        target.endRequest();
+    }
+
+    // 代理本身实现的接口返回代理,其他的交给target:
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return aClass.isInstance(this) ? aClass.cast(this) : target.unwrap(aClass);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return aClass.isInstance(this) || target.isWrapperFor(aClass);
+    }
+}
+
+//拦截代理的Statement
+class InterceptingStatement extends AbstractStatementProxy {
+    private final InterceptingConnection connection;
+    private final InterceptorChain chain;
+    private final Statement target;
+    // 最近一条加入批量的语句,作为executeBatch()的sql:
+    private String batchSql;
+
+    InterceptingStatement(InterceptingConnection connection, Statement target) {
+        this.connection = connection;
+        this.chain = connection.chain;
+        this.target = target;
+    }
+
+    @Override
+    protected Statement getRealStatement() {
+        return target;
+    }
+
+    @Override
+    public ResultSet executeQuery(String s) throws SQLException {
+        long start = chain.before(s);
+        ResultSet rs;
+        try {
+            rs = target.executeQuery(s);
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+        chain.after(s, start, null);
+        return chain.resultSet(s, rs);
+    }
+
+    @Override
+    public int executeUpdate(String s) throws SQLException {
+        long start = chain.before(s);
+        try {
+            int count = target.executeUpdate(s);
+            chain.after(s, start, null);
+            return count;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String s, int i) throws SQLException {
+        long start = chain.before(s);
+        try {
+            int count = target.executeUpdate(s, i);
+            chain.after(s, start, null);
+            return count;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String s, int[] ints) throws SQLException {
+        long start = chain.before(s);
+        try {
+            int count = target.executeUpdate(s, ints);
+            chain.after(s, start, null);
+            return count;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String s, String[] strings) throws SQLException {
+        long start = chain.before(s);
+        try {
+            int count = target.executeUpdate(s, strings);
+            chain.after(s, start, null);
+            return count;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String s) throws SQLException {
+        long start = chain.before(s);
+        try {
+            boolean result = target.execute(s);
+            chain.after(s, start, null);
+            return result;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String s, int i) throws SQLException {
+        long start = chain.before(s);
+        try {
+            boolean result = target.execute(s, i);
+            chain.after(s, start, null);
+            return result;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String s, int[] ints) throws SQLException {
+        long start = chain.before(s);
+        try {
+            boolean result = target.execute(s, ints);
+            chain.after(s, start, null);
+            return result;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String s, String[] strings) throws SQLException {
+        long start = chain.before(s);
+        try {
+            boolean result = target.execute(s, strings);
+            chain.after(s, start, null);
+            return result;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void addBatch(String s) throws SQLException {
+        target.addBatch(s);
+        batchSql = s;
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        String s = batchSql;
+        long start = chain.before(s);
+        try {
+            int[] counts = target.executeBatch();
+            chain.after(s, start, null);
+            return counts;
+        } catch (SQLException e) {
+            chain.after(s, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet rs = target.getResultSet();
+        return rs == null ? null : chain.resultSet(null, rs);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+}
+
+//拦截代理的PreparedStatement,参数设置直接转发
+class InterceptingPreparedStatement extends AbstractPreparedStatementProxy {
+    private final InterceptingConnection connection;
+    private final InterceptorChain chain;
+    private final PreparedStatement target;
+    private final String sql;
+
+    InterceptingPreparedStatement(InterceptingConnection connection, PreparedStatement target, String sql) {
+        this.connection = connection;
+        this.chain = connection.chain;
+        this.target = target;
+        this.sql = sql;
+    }
+
+    @Override
+    protected PreparedStatement getRealStatement() {
+        return target;
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        long start = chain.before(sql);
+        ResultSet rs;
+        try {
+            rs = target.executeQuery();
+        } catch (SQLException e) {
+            chain.after(sql, start, e);
+            throw e;
+        }
+        chain.after(sql, start, null);
+        return chain.resultSet(sql, rs);
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        long start = chain.before(sql);
+        try {
+            int count = target.executeUpdate();
+            chain.after(sql, start, null);
+            return count;
+        } catch (SQLException e) {
+            chain.after(sql, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        long start = chain.before(sql);
+        try {
+            boolean result = target.execute();
+            chain.after(sql, start, null);
+            return result;
+        } catch (SQLException e) {
+            chain.after(sql, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        long start = chain.before(sql);
+        try {
+            int[] counts = target.executeBatch();
+            chain.after(sql, start, null);
+            return counts;
+        } catch (SQLException e) {
+            chain.after(sql, start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet rs = target.getResultSet();
+        return rs == null ? null : chain.resultSet(sql, rs);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+}
+
+//拦截代理的CallableStatement:执行方法复用InterceptingPreparedStatement,输出参数的读取和设置直接转发
+class InterceptingCallableStatement extends AbstractCallableStatementProxy {
+    private final InterceptingConnection connection;
+    private final CallableStatement target;
+    // 包装同一个target,执行时经过拦截器链:
+    private final InterceptingPreparedStatement executor;
+
+    InterceptingCallableStatement(InterceptingConnection connection, CallableStatement target, String sql) {
+        this.connection = connection;
+        this.target = target;
+        this.executor = new InterceptingPreparedStatement(connection, target, sql);
+    }
+
+    @Override
+    protected CallableStatement getRealStatement() {
+        return target;
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        return executor.executeQuery();
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        return executor.executeUpdate();
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        return executor.execute();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        return executor.executeBatch();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return executor.getResultSet();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+}
+
+//慢SQL的回调,在执行SQL的线程中调用,应当尽快返回
+interface SlowQueryListener {
+    void onSlowQuery(String sql, long elapsedNanos);
+}
+
+//统计SQL执行耗时的拦截器,超过阈值的慢SQL计数,并交给可选的SlowQueryListener处理(例如写入应用的日志)
+class QueryTimingInterceptor implements JdbcInterceptor {
+    private final long slowThresholdNanos;
+    // 为null时只计数:
+    private final SlowQueryListener slowQueryListener;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder slowQueries = new LongAdder();
+
+    // slowThresholdMillis为0时不统计慢SQL:
+    public QueryTimingInterceptor(long slowThresholdMillis) {
+        this(slowThresholdMillis, null);
+    }
+
+    public QueryTimingInterceptor(long slowThresholdMillis, SlowQueryListener slowQueryListener) {
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        this.slowQueryListener = slowQueryListener;
+    }
+
+    @Override
+    public void afterExecute(String sql, long elapsedNanos, SQLException failure) {
+        latency.record(elapsedNanos);
+        if (failure != null) {
+            failures.increment();
+        }
+        if (slowThresholdNanos > 0 && elapsedNanos >= slowThresholdNanos) {
+            slowQueries.increment();
+            if (slowQueryListener != null) {
+                slowQueryListener.onSlowQuery(sql, elapsedNanos);
+            }
+        }
+    }
+
+    public long getSlowQueries() {
+        return slowQueries.sum();
+    }
+
+    public LatencySnapshot getLatency() {
+        return latency.snapshot();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+}
+
+//测量拦截代理每次调用的额外开销:在零延迟的FakeDriver上反复执行同一条语句,比较直接调用和叠加不同数量拦截器后的耗时
+class ProxyOverheadBenchmark {
+    private static final JdbcInterceptor NO_OP = new JdbcInterceptor() {
+    };
+
+    public static void main(String[] args) throws Exception {
+        FakeDriver.register();
+        long iterations = args.length > 0 ? Long.parseLong(args[0]) : 20_000_000L;
+        try (Connection raw = DriverManager.getConnection("jdbc:fake://proxy-bench")) {
+            Connection one = JdbcProxies.intercept(raw, NO_OP);
+            // 分四次叠加,仍然只有一层代理:
+            Connection four = raw;
+            for (int i = 0; i < 4; i++) {
+                four = JdbcProxies.intercept(four, NO_OP);
+            }
+            for (int round = 0; round < 3; round++) {
+                System.out.printf("round %d: direct=%.1fns, 1 interceptor=%.1fns, 4 interceptors=%.1fns%n", round,
+                        measure(raw, iterations), measure(one, iterations), measure(four, iterations));
+            }
+        }
+    }
+
+    private static double measure(Connection conn, long iterations) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE students SET score = ? WHERE id = ?")) {
+            long start = System.nanoTime();
+            for (long i = 0; i < iterations; i++) {
+                ps.setInt(1, 90);
+                ps.setLong(2, i);
+                ps.executeUpdate();
+            }
+            return (double) (System.nanoTime() - start) / iterations;
+        }
+    }
+}
+
+//内存中的假JDBC驱动,不需要MySQL就可以测试和压测各个DataSource.
+// url格式: jdbc:fake://任意名称?connectLatencyMs=5&queryLatencyMs=0.5&connectFailureRate=0.01&queryFailureRate=0.001&rows=10
+// 延迟用LockSupport.parkNanos()模拟,不占用CPU;使用前调用FakeDriver.register()注册到DriverManager
+class FakeDriver implements Driver {
+    static final String URL_PREFIX = "jdbc:fake:";
+    private static final AtomicBoolean registered = new AtomicBoolean();
+    // 相同url共用同一份配置和统计:
+    private static final Map<String, FakeDatabase> databases = new ConcurrentHashMap<>();
+
+    public static void register() throws SQLException {
+        if (registered.compareAndSet(false, true)) {
+            DriverManager.registerDriver(new FakeDriver());
+        }
+    }
+
+    // 获取某个url对应的假数据库,可以读取累计打开的连接数和执行的语句数:
+    public static FakeDatabase getDatabase(String url) {
+        return databases.computeIfAbsent(url, FakeDatabase::new);
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        FakeDatabase db = getDatabase(url);
+        db.connect();
+        return new FakeConnection(db);
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL_PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
+
+//FakeDriver中一个url对应的假数据库:解析url中的参数,模拟延迟和故障,并返回固定的查询结果
+class FakeDatabase {
+    private final long connectLatencyNanos;
+    private final long queryLatencyNanos;
+    // 可以在运行中修改,模拟数据库故障和恢复:
+    private volatile double connectFailureRate;
+    private final double queryFailureRate;
+    // 每次查询返回的结果,列为id(INT)和name(VARCHAR),每次返回一个共享行数据的只读视图:
+    private final CachedRowSet result;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder statements = new LongAdder();
+
+    FakeDatabase(String url) {
+        Map<String, String> params = new HashMap<>();
+        int q = url.indexOf('?');
+        if (q >= 0) {
+            for (String pair : url.substring(q + 1).split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        }
+        this.connectLatencyNanos = (long) (Double.parseDouble(params.getOrDefault("connectLatencyMs", "0")) * 1_000_000);
+        this.queryLatencyNanos = (long) (Double.parseDouble(params.getOrDefault("queryLatencyMs", "0")) * 1_000_000);
+        this.connectFailureRate = Double.parseDouble(params.getOrDefault("connectFailureRate", "0"));
+        this.queryFailureRate = Double.parseDouble(params.getOrDefault("queryFailureRate", "0"));
+        this.result = createResult(Integer.parseInt(params.getOrDefault("rows", "1")));
+    }
+
+    private static CachedRowSet createResult(int rows) {
+        try {
+            RowSetMetaDataImpl metaData = new RowSetMetaDataImpl();
+            metaData.setColumnCount(2);
+            metaData.setColumnName(1, "id");
+            metaData.setColumnLabel(1, "id");
+            metaData.setColumnType(1, Types.INTEGER);
+            metaData.setColumnName(2, "name");
+            metaData.setColumnLabel(2, "name");
+            metaData.setColumnType(2, Types.VARCHAR);
+            CachedRowSet rs = RowSetProvider.newFactory().createCachedRowSet();
+            rs.setMetaData(metaData);
+            // insertRow()把新行插在当前行之前,倒序插入才能得到id升序的结果:
+            for (int i = rows; i >= 1; i--) {
+                rs.moveToInsertRow();
+                rs.updateInt(1, i);
+                rs.updateString(2, "name" + i);
+                rs.insertRow();
+                rs.moveToCurrentRow();
+            }
+            rs.beforeFirst();
+            return rs;
+        } catch (SQLException e) {
+            throw new IllegalArgumentException("Cannot create fake result", e);
+        }
+    }
+
+    void connect() throws SQLException {
+        delay(connectLatencyNanos);
+        if (connectFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < connectFailureRate) {
+            throw new SQLTransientConnectionException("Injected connect failure");
+        }
+        connections.increment();
+    }
+
+    // 模拟一次网络往返:
+    void roundTrip() throws SQLException {
+        delay(queryLatencyNanos);
+        if (queryFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < queryFailureRate) {
+            throw new SQLTransientException("Injected query failure");
+        }
+        statements.increment();
+    }
+
+    ResultSet query() throws SQLException {
+        roundTrip();
+        return new CachedResultView(result);
+    }
+
+    public void setConnectFailureRate(double connectFailureRate) {
+        this.connectFailureRate = connectFailureRate;
+    }
+
+    private static void delay(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    // 累计成功打开的连接数:
+    public long getConnectionCount() {
+        return connections.sum();
+    }
+
+    // 累计成功执行的语句数(包括commit和rollback):
+    public long getStatementCount() {
+        return statements.sum();
+    }
+}
+
+//FakeDriver返回的Connection.
+// 继承AbstractConnectionProxy只是为了复用它对Connection接口的实现,没有实际的Connection,未覆写的方法会抛出SQLFeatureNotSupportedException
+class FakeConnection extends AbstractConnectionProxy {
+    final FakeDatabase db;
+    private volatile boolean closed = false;
+    private boolean autoCommit = true;
+    private boolean readOnly = false;
+    private int transactionIsolation = Connection.TRANSACTION_REPEATABLE_READ;
+
+    FakeConnection(FakeDatabase db) {
+        this.db = db;
+    }
+
+    @Override
+    protected Connection getRealConnection() throws SQLException {
+        throw new SQLFeatureNotSupportedException("Not supported by FakeDriver");
+    }
+
+    void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLNonTransientConnectionException("Connection is closed");
+        }
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        checkOpen();
+        return new FakeStatement(this);
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1) throws SQLException {
+        return createStatement();
+    }
+
+    @Override
+    public Statement createStatement(int i, int i1, int i2) throws SQLException {
+        return createStatement();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        checkOpen();
+        return new FakePreparedStatement(this, sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
+        return prepareStatement(s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
+        return prepareStatement(s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int i) throws SQLException {
+        return prepareStatement(s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
+        return prepareStatement(s);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
+        return prepareStatement(s);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        checkOpen();
+        return autoCommit;
+    }
+
+    @Override
+    public void setAutoCommit(boolean b) throws SQLException {
+        checkOpen();
+        autoCommit = b;
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        checkOpen();
+        db.roundTrip();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        checkOpen();
+        db.roundTrip();
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return readOnly;
+    }
+
+    @Override
+    public void setReadOnly(boolean b) throws SQLException {
+        checkOpen();
+        readOnly = b;
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return transactionIsolation;
+    }
+
+    @Override
+    public void setTransactionIsolation(int i) throws SQLException {
+        checkOpen();
+        transactionIsolation = i;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public boolean isValid(int i) throws SQLException {
+        return !closed;
+    }
+}
+
+//FakeConnection.createStatement()返回的Statement,SELECT返回FakeDatabase的固定结果,其他语句返回更新1行
+class FakeStatement extends AbstractStatementProxy {
+    private final FakeConnection connection;
+    private final List<String> batch = new ArrayList<>();
+    private boolean closed = false;
+    private ResultSet resultSet;
+    private int updateCount = -1;
+    private int queryTimeout;
+    private int fetchSize;
+
+    FakeStatement(FakeConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    protected Statement getRealStatement() throws SQLException {
+        throw new SQLFeatureNotSupportedException("Not supported by FakeDriver");
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        connection.checkOpen();
+    }
+
+    @Override
+    public ResultSet executeQuery(String s) throws SQLException {
+        checkOpen();
+        resultSet = connection.db.query();
+        updateCount = -1;
+        return resultSet;
+    }
+
+    @Override
+    public int executeUpdate(String s) throws SQLException {
+        checkOpen();
+        connection.db.roundTrip();
+        resultSet = null;
+        updateCount = 1;
+        return updateCount;
+    }
+
+    @Override
+    public boolean execute(String s) throws SQLException {
+        if (QueryResultCache.isSelect(s)) {
+            executeQuery(s);
+            return true;
+        }
+        executeUpdate(s);
+        return false;
+    }
+
+    @Override
+    public void addBatch(String s) throws SQLException {
+        checkOpen();
+        batch.add(s);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        batch.clear();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        checkOpen();
+        connection.db.roundTrip();
+        int[] counts = new int[batch.size()];
+        Arrays.fill(counts, 1);
+        batch.clear();
+        return counts;
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return resultSet;
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return updateCount;
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        resultSet = null;
+        updateCount = -1;
+        return false;
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return queryTimeout;
+    }
+
+    @Override
+    public void setQueryTimeout(int i) throws SQLException {
+        queryTimeout = i;
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return fetchSize;
+    }
+
+    @Override
+    public void setFetchSize(int i) throws SQLException {
+        fetchSize = i;
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+}
+
+//FakeConnection.prepareStatement()返回的PreparedStatement,只接受常见类型的参数,参数值本身被忽略
+class FakePreparedStatement extends AbstractPreparedStatementProxy {
+    private final FakeConnection connection;
+    private final String sql;
+    private int batchSize = 0;
+    private boolean closed = false;
+    private ResultSet resultSet;
+    private int updateCount = -1;
+    private int queryTimeout;
+    private int fetchSize;
+
+    FakePreparedStatement(FakeConnection connection, String sql) {
+        this.connection = connection;
+        this.sql = sql;
+    }
+
+    @Override
+    protected PreparedStatement getRealStatement() throws SQLException {
+        throw new SQLFeatureNotSupportedException("Not supported by FakeDriver");
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        connection.checkOpen();
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        checkOpen();
+        resultSet = connection.db.query();
+        updateCount = -1;
+        return resultSet;
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        checkOpen();
+        connection.db.roundTrip();
+        resultSet = null;
+        updateCount = 1;
+        return updateCount;
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        if (QueryResultCache.isSelect(sql)) {
+            executeQuery();
+            return true;
+        }
+        executeUpdate();
+        return false;
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        checkOpen();
+        batchSize++;
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        batchSize = 0;
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        checkOpen();
+        connection.db.roundTrip();
+        int[] counts = new int[batchSize];
+        Arrays.fill(counts, 1);
+        batchSize = 0;
+        return counts;
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+    }
+
+    @Override
+    public void setNull(int i, int i1) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setBoolean(int i, boolean b) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setInt(int i, int i1) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setLong(int i, long l) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setDouble(int i, double v) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setBigDecimal(int i, BigDecimal bigDecimal) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setString(int i, String s) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setDate(int i, java.sql.Date date) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setTimestamp(int i, Timestamp timestamp) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public void setObject(int i, Object o) throws SQLException {
+        checkOpen();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return resultSet;
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return updateCount;
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        resultSet = null;
+        updateCount = -1;
+        return false;
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return queryTimeout;
+    }
+
+    @Override
+    public void setQueryTimeout(int i) throws SQLException {
+        queryTimeout = i;
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return fetchSize;
+    }
+
+    @Override
+    public void setFetchSize(int i) throws SQLException {
+        fetchSize = i;
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+}
+
+//压测工具:用N个线程在指定时间内反复从DataSource借用连接执行同一条查询,统计吞吐量和延迟分布
+class LoadGenerator {
+    public static LoadReport run(DataSource dataSource, String sql, int threads, long durationMillis) throws InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder errors = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < deadline[0]) {
+                    long start = System.nanoTime();
+                    try (Connection conn = dataSource.getConnection();
+                         PreparedStatement ps = conn.prepareStatement(sql);
+                         ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            // 读完整个结果集:
+                        }
+                        latency.record(System.nanoTime() - start);
+                    } catch (SQLException | RuntimeException e) {
+                        errors.increment();
+                    }
+                }
+            }, "load-" + i);
+            workers[i].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        // CountDownLatch保证workers能看到deadline:
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new LoadReport(threads, System.nanoTime() - start, errors.sum(), latency.snapshot());
+    }
+}
+
+//一次压测的结果
+class LoadReport {
+    private final int threads;
+    private final long elapsedNanos;
+    private final long errors;
+    private final LatencySnapshot latency;
+
+    public LoadReport(int threads, long elapsedNanos, long errors, LatencySnapshot latency) {
+        this.threads = threads;
+        this.elapsedNanos = elapsedNanos;
+        this.errors = errors;
+        this.latency = latency;
+    }
+
+    public long getOperations() {
+        return latency.getCount();
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    // 每秒成功的操作数:
+    public double getThroughput() {
+        return latency.getCount() * 1e9 / elapsedNanos;
+    }
+
+    public LatencySnapshot getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("threads=%d, ops=%d, errors=%d, throughput=%.0f ops/s, latency={%s}",
+                threads, getOperations(), errors, getThroughput(), latency);
+    }
+}
+
+//离线压测各个DataSource:不传参数时连接FakeDriver,例如
+//   java -cp target/classes com.me.PoolBenchmark "jdbc:fake://bench?connectLatencyMs=20&queryLatencyMs=0.5" 5000
+class PoolBenchmark {
+    public static void main(String[] args) throws Exception {
+        FakeDriver.register();
+        String url = args.length > 0 ? args[0] : "jdbc:fake://bench?connectLatencyMs=20&queryLatencyMs=0.5&queryFailureRate=0.0001";
+        long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 5000;
+        String sql = "SELECT * FROM students";
+
+        for (int threads : new int[]{1, 16, 128, 512}) {
+            try (PooledDataSource ds = PooledDataSourceBuilder.builder()
+                    .setUrl(url)
+                    .setMaxPoolSize(32)
+                    .setConnectionTimeout(30_000)
+                    .build()) {
+                LoadReport report = LoadGenerator.run(ds, sql, threads, durationMillis);
+                System.out.println("PooledDataSource " + report);
+                System.out.println("    " + ds.getStats());
+            }
+        }
+        // 对比:每次都打开新的物理连接
+        LoadReport report = LoadGenerator.run(new LazyDataSource(url, null, null), sql, 16, durationMillis);
+        System.out.println("LazyDataSource " + report);
+    }
+}
+
+//检查从库连续连接失败后被移出,数据库恢复后由后台检测重新加入;失败时以非0状态退出
+class RoutingRecoveryCheck {
+    public static void main(String[] args) throws Exception {
+        FakeDriver.register();
+        String replicaUrl = "jdbc:fake://routing-replica";
+        PooledDataSource primary = PooledDataSourceBuilder.builder().setUrl("jdbc:fake://routing-primary").build();
+        PooledDataSource replica = PooledDataSourceBuilder.builder().setUrl(replicaUrl).setConnectionTimeout(1000).build();
+        try (RoutingDataSource ds = new RoutingDataSource(primary, List.of(replica), 50, 2)) {
+            FakeDatabase db = FakeDriver.getDatabase(replicaUrl);
+            db.setConnectFailureRate(1);
+            for (int i = 0; i < 2; i++) {
+                try (Connection conn = ds.getConnection()) {
+                    conn.setReadOnly(true);
+                    conn.createStatement().close();
+                }
+            }
+            int down = ds.getHealthyReplicaCount();
+            db.setConnectFailureRate(0);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (ds.getHealthyReplicaCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            int up = ds.getHealthyReplicaCount();
+            System.out.println("healthy replicas: after failures=" + down + ", after recovery=" + up);
+            if (down != 0 || up != 1) {
+                System.exit(1);
+            }
+        }
+    }
+}
+
+//检查后台维护在有多个空闲连接时每轮都能结束,并且检测通过的连接仍留在池中;失败时以非0状态退出
+class PoolHousekeepingCheck {
+    public static void main(String[] args) throws Exception {
+        FakeDriver.register();
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        try (PooledDataSource ds = PooledDataSourceBuilder.builder()
+                .setUrl("jdbc:fake://housekeeping")
+                .setMinPoolSize(idle)
+                .setMaxPoolSize(idle)
+                .setHousekeepingPeriod(0)
+                .build()) {
+            ds.getConnection().close();
+            Thread pass = new Thread(ds::housekeep, "housekeep-pass");
+            pass.setDaemon(true);
+            pass.start();
+            pass.join(5_000);
+            PoolStats stats = ds.getStats();
+            System.out.println("finished=" + !pass.isAlive() + ", " + stats);
+            if (pass.isAlive() || stats.getIdleConnections() != idle) {
+                System.exit(1);
+            }
+        }
+    }
+}
+
+//自动批量执行后回调每条语句的更新行数
+interface BatchFlushListener {
+    void onFlush(String sql, int[] updateCounts);
+}
+
+//自动批量执行的连接代理:连续执行同一条INSERT/UPDATE/DELETE语句时,并不立刻发送给数据库,而是先addBatch(),
+// 攒够batchSize条、等待超过maxDelay、commit()或者执行其他SQL之前再一次性executeBatch(),把多次网络往返合并为一次.
+// 因为真正执行被推迟了,延迟执行的executeUpdate()只能返回Statement.SUCCESS_NO_INFO,
+// 每条语句实际的更新行数在批量执行后通过BatchFlushListener回调,执行失败时在下一次操作上抛出BatchUpdateException.
+// MySQL驱动需要在url中加上rewriteBatchedStatements=true才会把批量INSERT改写为一条多值INSERT
+class BatchingConnectionProxy extends AbstractConnectionProxy {
+    private final Connection target;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    // 用于按时间触发批量执行,为null时只在下一次操作时检查是否超时:
+    private final ScheduledExecutorService scheduler;
+    private final BatchFlushListener listener;
+    // 后台定时执行与调用线程可能同时访问下面的状态:
+    private final ReentrantLock lock = new ReentrantLock();
+    // 尚未执行的批量,同一时刻最多一条SQL,执行其他语句前先把它执行掉,保证执行顺序不变:
+    private SharedPreparedStatement pending;
+    private int pendingCount;
+    private long pendingSince;
+    private ScheduledFuture<?> scheduledFlush;
+    // 调用线程是否正在设置下一行的参数:从第一次使用实际语句开始,到executeUpdate()加入批量或关闭语句为止.
+    // 这期间后台不执行批量,避免和调用线程同时访问同一个PreparedStatement:
+    private boolean rowInProgress;
+    // 后台执行失败的异常,在调用线程的下一次操作上抛出:
+    private SQLException asyncFailure;
+
+    public BatchingConnectionProxy(Connection target, int batchSize) {
+        this(target, batchSize, 0, null, null);
+    }
+
+    public BatchingConnectionProxy(Connection target, int batchSize, long maxDelayMillis,
+                                   ScheduledExecutorService scheduler, BatchFlushListener listener) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.target = target;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    // 除了可以批量执行的语句以外,其他所有操作都要先执行掉尚未执行的批量:
+    @Override
+    protected Connection getRealConnection() throws SQLException {
+        flush();
+        return target;
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        if (!isBatchable(sql)) {
+            return getRealConnection().prepareStatement(sql);
+        }
+        lock.lock();
+        try {
+            // 在循环中反复prepareStatement()同一条SQL时,继续使用尚未执行的那条语句:
+            if (pending != null && pending.sql.equals(sql)) {
+                pending.openCount++;
+                return new BatchingPreparedStatement(this, pending);
+            }
+            flushLocked();
+            SharedPreparedStatement shared = new SharedPreparedStatement(sql, target.prepareStatement(sql));
+            shared.openCount++;
+            return new BatchingPreparedStatement(this, shared);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 由BatchingPreparedStatement.executeUpdate()调用,把当前参数加入批量:
+    int enqueue(SharedPreparedStatement stmt) throws SQLException {
+        lock.lock();
+        try {
+            throwAsyncFailure();
+            if (pending != null && pending != stmt) {
+                flushLocked();
+            }
+            stmt.target.addBatch();
+            rowInProgress = false;
+            if (pending == null) {
+                pending = stmt;
+                pendingSince = System.nanoTime();
+                if (scheduler != null && maxDelayNanos > 0) {
+                    scheduledFlush = scheduler.schedule(this::flushInBackground, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            pendingCount++;
+            if (pendingCount >= batchSize || (maxDelayNanos > 0 && System.nanoTime() - pendingSince >= maxDelayNanos)) {
+                flushLocked();
+            }
+            return Statement.SUCCESS_NO_INFO;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 立刻执行尚未执行的批量:
+    public void flush() throws SQLException {
+        lock.lock();
+        try {
+            throwAsyncFailure();
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 由BatchingPreparedStatement调用,在加锁后标记调用线程开始使用实际语句:
+    PreparedStatement useStatement(SharedPreparedStatement stmt) {
+        lock.lock();
+        try {
+            rowInProgress = true;
+            return stmt.target;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushInBackground() {
+        lock.lock();
+        try {
+            if (rowInProgress) {
+                // 调用线程正在设置参数,推迟到下一个周期,或者由调用线程在executeUpdate()时按超时执行:
+                if (pending != null) {
+                    scheduledFlush = scheduler.schedule(this::flushInBackground, maxDelayNanos, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            flushLocked();
+        } catch (SQLException e) {
+            asyncFailure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked() throws SQLException {
+        SharedPreparedStatement batch = pending;
+        if (batch == null) {
+            return;
+        }
+        pending = null;
+        pendingCount = 0;
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        try {
+            int[] updateCounts = batch.target.executeBatch();
+            if (listener != null) {
+                listener.onFlush(batch.sql, updateCounts);
+            }
+        } finally {
+            closeIfUnused(batch);
+        }
+    }
+
+    private void throwAsyncFailure() throws SQLException {
+        SQLException e = asyncFailure;
+        if (e != null) {
+            asyncFailure = null;
+            throw e;
+        }
+    }
+
+    // 由BatchingPreparedStatement.close()调用,尚未执行的语句要等批量执行之后再关闭:
+    void closeStatement(SharedPreparedStatement stmt) {
+        lock.lock();
+        try {
+            stmt.openCount--;
+            rowInProgress = false;
+            if (stmt != pending) {
+                closeIfUnused(stmt);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void closeIfUnused(SharedPreparedStatement stmt) {
+        if (stmt.openCount == 0) {
+            try {
+                stmt.target.close();
+            } catch (SQLException e) {
+                // 连接可能已经断开,忽略:
+            }
+        }
+    }
+
+    // 回滚时尚未执行的批量直接丢弃:
+    @Override
+    public void rollback() throws SQLException {
+        lock.lock();
+        try {
+            SharedPreparedStatement batch = pending;
+            if (batch != null) {
+                pending = null;
+                pendingCount = 0;
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                try {
+                    batch.target.clearBatch();
+                } finally {
+                    closeIfUnused(batch);
+                }
+            }
+            asyncFailure = null;
+        } finally {
+            lock.unlock();
+        }
+        target.rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            target.close();
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return target.isClosed();
+    }
+
+    static boolean isBatchable(String sql) {
+        String s = sql.stripLeading();
+        return s.regionMatches(true, 0, "INSERT", 0, 6)
+                || s.regionMatches(true, 0, "UPDATE", 0, 6)
+                || s.regionMatches(true, 0, "DELETE", 0, 6)
+                || s.regionMatches(true, 0, "REPLACE", 0, 7);
+    }
+}
+
+//多个BatchingPreparedStatement共用的实际PreparedStatement,全部关闭且批量执行之后才真正关闭
+class SharedPreparedStatement {
+    final String sql;
+    final PreparedStatement target;
+    // 尚未关闭的BatchingPreparedStatement数量:
+    int openCount;
+
+    SharedPreparedStatement(String sql, PreparedStatement target) {
+        this.sql = sql;
+        this.target = target;
+    }
+}
+
+//executeUpdate()只把参数加入批量,其他执行方法先执行掉尚未执行的批量再转发,保证执行顺序不变
+class BatchingPreparedStatement extends AbstractPreparedStatementProxy {
+    private final BatchingConnectionProxy connection;
+    private final SharedPreparedStatement shared;
+    private boolean closed = false;
+
+    BatchingPreparedStatement(BatchingConnectionProxy connection, SharedPreparedStatement shared) {
+        this.connection = connection;
+        this.shared = shared;
+    }
+
+    @Override
+    protected PreparedStatement getRealStatement() throws SQLException {
+        if (closed) {
+            throw new SQLException("Statement is closed");
+        }
+        return connection.useStatement(shared);
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        getRealStatement();
+        return connection.enqueue(shared);
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        connection.flush();
+        return super.execute();
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        connection.flush();
+        return super.executeQuery();
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        connection.flush();
+        super.addBatch();
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        connection.flush();
+        super.clearBatch();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        connection.flush();
+        return super.executeBatch();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        connection.flush();
+        return super.getGeneratedKeys();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        connection.flush();
+        return super.getUpdateCount();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        connection.flush();
+        return super.getResultSet();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            connection.closeStatement(shared);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+}
+
+//把ResultSet的当前行映射为一个对象
+interface RowMapper<T> {
+    T mapRow(ResultSet rs) throws SQLException;
+}
+
+//流式查询:返回惰性求值的Stream,下游每取一个元素才从ResultSet读取一行,不会一次把整个结果集读入内存.
+// Stream读完或关闭时自动关闭ResultSet、PreparedStatement并关闭Connection(连接池的Connection会被归还),
+// 提前结束时必须关闭Stream,所以应当在try-with-resources中使用:
+//   try (Stream<String> names = StreamingQuery.stream(ds, "SELECT name FROM students", rs -> rs.getString(1))) {
+//       names.forEach(System.out::println);
+//   }
+class StreamingQuery {
+    // MySQL驱动约定fetchSize为Integer.MIN_VALUE时逐行流式读取,否则默认把整个结果集读入内存.
+    // 流式读取期间同一个Connection不能执行其他语句;也可以在url中加上useCursorFetch=true后使用正数fetchSize:
+    public static final int MYSQL_STREAMING_FETCH_SIZE = Integer.MIN_VALUE;
+
+    public static <T> Stream<T> stream(DataSource dataSource, String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        return stream(dataSource, MYSQL_STREAMING_FETCH_SIZE, sql, mapper, params);
+    }
+
+    public static <T> Stream<T> stream(DataSource dataSource, int fetchSize, String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        Connection conn = dataSource.getConnection();
+        PreparedStatement ps = null;
+        try {
+            ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            for (int i = 0; i < params.length; i++) {
+                ps.setObject(i + 1, params[i]);
+            }
+            ResultSetSpliterator<T> spliterator = new ResultSetSpliterator<>(conn, ps, ps.executeQuery(), mapper);
+            return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+        } catch (SQLException | RuntimeException e) {
+            if (ps != null) {
+                ResultSetSpliterator.closeStatement(ps);
+            }
+            ResultSetSpliterator.closeQuietly(conn);
+            throw e;
+        }
+    }
+}
+
+//按需逐行读取ResultSet的Spliterator,读完时立刻释放资源
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+    private final Connection conn;
+    private final PreparedStatement ps;
+    private final ResultSet rs;
+    private final RowMapper<T> mapper;
+    private boolean closed = false;
+
+    ResultSetSpliterator(Connection conn, PreparedStatement ps, ResultSet rs, RowMapper<T> mapper) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED);
+        this.conn = conn;
+        this.ps = ps;
+        this.rs = rs;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed) {
+            return false;
+        }
+        T row;
+        // 读取或映射失败(包括mapper抛出的RuntimeException)时同样释放资源:
+        boolean ok = false;
+        try {
+            if (!rs.next()) {
+                close();
+                return false;
+            }
+            row = mapper.mapRow(rs);
+            ok = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!ok) {
+                close();
+            }
+        }
+        action.accept(row);
+        return true;
+    }
+
+    // 可以重复调用:
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeQuietly(rs);
+        closeStatement(ps);
+        closeQuietly(conn);
+    }
+
+    // PreparedStatement可能被连接池缓存,关闭前恢复默认的fetchSize:
+    static void closeStatement(PreparedStatement ps) {
+        try {
+            ps.setFetchSize(0);
+        } catch (SQLException e) {
+            // 忽略:
+        }
+        closeQuietly(ps);
+    }
+
+    static void closeQuietly(AutoCloseable resource) {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            // 忽略:
+        }
+    }
+}
+
+//ResultSet代理的基类,把每一个方法转发给getRealResultSet()
+abstract class AbstractResultSetProxy implements ResultSet {
+
+    // 抽象方法获取实际的ResultSet:
+    protected abstract ResultSet getRealResultSet() throws SQLException;
+
+    // 实现ResultSet接口的每一个方法:
+    @Override
+    public boolean absolute(int i) throws SQLException {
+        return getRealResultSet().absolute(i);
+    }
+
+    @Override
+    public void afterLast() throws SQLException {
+        getRealResultSet().afterLast();
+    }
+
+    @Override
+    public void beforeFirst() throws SQLException {
+        getRealResultSet().beforeFirst();
+    }
+
+    @Override
+    public void cancelRowUpdates() throws SQLException {
+        getRealResultSet().cancelRowUpdates();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        getRealResultSet().clearWarnings();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        getRealResultSet().close();
+    }
+
+    @Override
+    public void deleteRow() throws SQLException {
+        getRealResultSet().deleteRow();
+    }
+
+    @Override
+    public int findColumn(String s) throws SQLException {
+        return getRealResultSet().findColumn(s);
+    }
+
+    @Override
+    public boolean first() throws SQLException {
+        return getRealResultSet().first();
+    }
+
+    @Override
+    public Array getArray(String s) throws SQLException {
+        return getRealResultSet().getArray(s);
+    }
+
+    @Override
+    public Array getArray(int i) throws SQLException {
+        return getRealResultSet().getArray(i);
+    }
+
+    @Override
+    public InputStream getAsciiStream(String s) throws SQLException {
+        return getRealResultSet().getAsciiStream(s);
+    }
+
+    @Override
+    public InputStream getAsciiStream(int i) throws SQLException {
+        return getRealResultSet().getAsciiStream(i);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public BigDecimal getBigDecimal(String s, int i) throws SQLException {
+        return getRealResultSet().getBigDecimal(s, i);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String s) throws SQLException {
+        return getRealResultSet().getBigDecimal(s);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public BigDecimal getBigDecimal(int i, int i1) throws SQLException {
+        return getRealResultSet().getBigDecimal(i, i1);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int i) throws SQLException {
+        return getRealResultSet().getBigDecimal(i);
+    }
+
+    @Override
+    public InputStream getBinaryStream(String s) throws SQLException {
+        return getRealResultSet().getBinaryStream(s);
+    }
+
+    @Override
+    public InputStream getBinaryStream(int i) throws SQLException {
+        return getRealResultSet().getBinaryStream(i);
+    }
+
+    @Override
+    public Blob getBlob(String s) throws SQLException {
+        return getRealResultSet().getBlob(s);
+    }
+
+    @Override
+    public Blob getBlob(int i) throws SQLException {
+        return getRealResultSet().getBlob(i);
+    }
+
+    @Override
+    public boolean getBoolean(String s) throws SQLException {
+        return getRealResultSet().getBoolean(s);
+    }
+
+    @Override
+    public boolean getBoolean(int i) throws SQLException {
+        return getRealResultSet().getBoolean(i);
+    }
+
+    @Override
+    public byte getByte(String s) throws SQLException {
+        return getRealResultSet().getByte(s);
+    }
+
+    @Override
+    public byte getByte(int i) throws SQLException {
+        return getRealResultSet().getByte(i);
+    }
+
+    @Override
+    public byte[] getBytes(String s) throws SQLException {
+        return getRealResultSet().getBytes(s);
+    }
+
+    @Override
+    public byte[] getBytes(int i) throws SQLException {
+        return getRealResultSet().getBytes(i);
+    }
+
+    @Override
+    public Reader getCharacterStream(String s) throws SQLException {
+        return getRealResultSet().getCharacterStream(s);
+    }
+
+    @Override
+    public Reader getCharacterStream(int i) throws SQLException {
+        return getRealResultSet().getCharacterStream(i);
+    }
+
+    @Override
+    public Clob getClob(String s) throws SQLException {
+        return getRealResultSet().getClob(s);
+    }
+
+    @Override
+    public Clob getClob(int i) throws SQLException {
+        return getRealResultSet().getClob(i);
+    }
+
+    @Override
+    public int getConcurrency() throws SQLException {
+        return getRealResultSet().getConcurrency();
+    }
+
+    @Override
+    public String getCursorName() throws SQLException {
+        return getRealResultSet().getCursorName();
+    }
+
+    @Override
+    public java.sql.Date getDate(String s, Calendar calendar) throws SQLException {
+        return getRealResultSet().getDate(s, calendar);
+    }
+
+    @Override
+    public java.sql.Date getDate(String s) throws SQLException {
+        return getRealResultSet().getDate(s);
+    }
+
+    @Override
+    public java.sql.Date getDate(int i, Calendar calendar) throws SQLException {
+        return getRealResultSet().getDate(i, calendar);
+    }
+
+    @Override
+    public java.sql.Date getDate(int i) throws SQLException {
+        return getRealResultSet().getDate(i);
+    }
+
+    @Override
+    public double getDouble(String s) throws SQLException {
+        return getRealResultSet().getDouble(s);
+    }
+
+    @Override
+    public double getDouble(int i) throws SQLException {
+        return getRealResultSet().getDouble(i);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return getRealResultSet().getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return getRealResultSet().getFetchSize();
+    }
+
+    @Override
+    public float getFloat(String s) throws SQLException {
+        return getRealResultSet().getFloat(s);
+    }
+
+    @Override
+    public float getFloat(int i) throws SQLException {
+        return getRealResultSet().getFloat(i);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return getRealResultSet().getHoldability();
+    }
+
+    @Override
+    public int getInt(String s) throws SQLException {
+        return getRealResultSet().getInt(s);
+    }
+
+    @Override
+    public int getInt(int i) throws SQLException {
+        return getRealResultSet().getInt(i);
+    }
+
+    @Override
+    public long getLong(String s) throws SQLException {
+        return getRealResultSet().getLong(s);
+    }
+
+    @Override
+    public long getLong(int i) throws SQLException {
+        return getRealResultSet().getLong(i);
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return getRealResultSet().getMetaData();
+    }
+
+    @Override
+    public Reader getNCharacterStream(String s) throws SQLException {
+        return getRealResultSet().getNCharacterStream(s);
+    }
+
+    @Override
+    public Reader getNCharacterStream(int i) throws SQLException {
+        return getRealResultSet().getNCharacterStream(i);
+    }
+
+    @Override
+    public NClob getNClob(String s) throws SQLException {
+        return getRealResultSet().getNClob(s);
+    }
+
+    @Override
+    public NClob getNClob(int i) throws SQLException {
+        return getRealResultSet().getNClob(i);
+    }
+
+    @Override
+    public String getNString(String s) throws SQLException {
+        return getRealResultSet().getNString(s);
+    }
+
+    @Override
+    public String getNString(int i) throws SQLException {
+        return getRealResultSet().getNString(i);
+    }
+
+    @Override
+    public <T> T getObject(String s, Class<T> aClass) throws SQLException {
+        return getRealResultSet().getObject(s, aClass);
+    }
+
+    @Override
+    public Object getObject(String s, Map<String, Class<?>> map) throws SQLException {
+        return getRealResultSet().getObject(s, map);
+    }
+
+    @Override
+    public Object getObject(String s) throws SQLException {
+        return getRealResultSet().getObject(s);
+    }
+
+    @Override
+    public <T> T getObject(int i, Class<T> aClass) throws SQLException {
+        return getRealResultSet().getObject(i, aClass);
+    }
+
+    @Override
+    public Object getObject(int i, Map<String, Class<?>> map) throws SQLException {
+        return getRealResultSet().getObject(i, map);
+    }
+
+    @Override
+    public Object getObject(int i) throws SQLException {
+        return getRealResultSet().getObject(i);
+    }
+
+    @Override
+    public Ref getRef(String s) throws SQLException {
+        return getRealResultSet().getRef(s);
+    }
+
+    @Override
+    public Ref getRef(int i) throws SQLException {
+        return getRealResultSet().getRef(i);
+    }
+
+    @Override
+    public int getRow() throws SQLException {
+        return getRealResultSet().getRow();
+    }
+
+    @Override
+    public RowId getRowId(String s) throws SQLException {
+        return getRealResultSet().getRowId(s);
+    }
+
+    @Override
+    public RowId getRowId(int i) throws SQLException {
+        return getRealResultSet().getRowId(i);
+    }
+
+    @Override
+    public SQLXML getSQLXML(String s) throws SQLException {
+        return getRealResultSet().getSQLXML(s);
+    }
+
+    @Override
+    public SQLXML getSQLXML(int i) throws SQLException {
+        return getRealResultSet().getSQLXML(i);
+    }
+
+    @Override
+    public short getShort(String s) throws SQLException {
+        return getRealResultSet().getShort(s);
+    }
+
+    @Override
+    public short getShort(int i) throws SQLException {
+        return getRealResultSet().getShort(i);
+    }
+
+    @Override
+    public Statement getStatement() throws SQLException {
+        return getRealResultSet().getStatement();
+    }
+
+    @Override
+    public String getString(String s) throws SQLException {
+        return getRealResultSet().getString(s);
+    }
+
+    @Override
+    public String getString(int i) throws SQLException {
+        return getRealResultSet().getString(i);
+    }
+
+    @Override
+    public Time getTime(String s, Calendar calendar) throws SQLException {
+        return getRealResultSet().getTime(s, calendar);
+    }
+
+    @Override
+    public Time getTime(String s) throws SQLException {
+        return getRealResultSet().getTime(s);
+    }
+
+    @Override
+    public Time getTime(int i, Calendar calendar) throws SQLException {
+        return getRealResultSet().getTime(i, calendar);
+    }
+
+    @Override
+    public Time getTime(int i) throws SQLException {
+        return getRealResultSet().getTime(i);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String s, Calendar calendar) throws SQLException {
+        return getRealResultSet().getTimestamp(s, calendar);
+    }
+
+    @Override
+    public Timestamp getTimestamp(String s) throws SQLException {
+        return getRealResultSet().getTimestamp(s);
+    }
+
+    @Override
+    public Timestamp getTimestamp(int i, Calendar calendar) throws SQLException {
+        return getRealResultSet().getTimestamp(i, calendar);
+    }
+
+    @Override
+    public Timestamp getTimestamp(int i) throws SQLException {
+        return getRealResultSet().getTimestamp(i);
+    }
+
+    @Override
+    public int getType() throws SQLException {
+        return getRealResultSet().getType();
+    }
+
+    @Override
+    public URL getURL(String s) throws SQLException {
+        return getRealResultSet().getURL(s);
+    }
+
+    @Override
+    public URL getURL(int i) throws SQLException {
+        return getRealResultSet().getURL(i);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public InputStream getUnicodeStream(String s) throws SQLException {
+        return getRealResultSet().getUnicodeStream(s);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public InputStream getUnicodeStream(int i) throws SQLException {
+        return getRealResultSet().getUnicodeStream(i);
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return getRealResultSet().getWarnings();
+    }
+
+    @Override
+    public void insertRow() throws SQLException {
+        getRealResultSet().insertRow();
+    }
+
+    @Override
+    public boolean isAfterLast() throws SQLException {
+        return getRealResultSet().isAfterLast();
+    }
+
+    @Override
+    public boolean isBeforeFirst() throws SQLException {
+        return getRealResultSet().isBeforeFirst();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return getRealResultSet().isClosed();
+    }
+
+    @Override
+    public boolean isFirst() throws SQLException {
+        return getRealResultSet().isFirst();
+    }
+
+    @Override
+    public boolean isLast() throws SQLException {
+        return getRealResultSet().isLast();
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return getRealResultSet().isWrapperFor(aClass);
+    }
+
+    @Override
+    public boolean last() throws SQLException {
+        return getRealResultSet().last();
+    }
+
+    @Override
+    public void moveToCurrentRow() throws SQLException {
+        getRealResultSet().moveToCurrentRow();
+    }
+
+    @Override
+    public void moveToInsertRow() throws SQLException {
+        getRealResultSet().moveToInsertRow();
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        return getRealResultSet().next();
+    }
+
+    @Override
+    public boolean previous() throws SQLException {
+        return getRealResultSet().previous();
+    }
+
+    @Override
+    public void refreshRow() throws SQLException {
+        getRealResultSet().refreshRow();
+    }
+
+    @Override
+    public boolean relative(int i) throws SQLException {
+        return getRealResultSet().relative(i);
+    }
+
+    @Override
+    public boolean rowDeleted() throws SQLException {
+        return getRealResultSet().rowDeleted();
+    }
+
+    @Override
+    public boolean rowInserted() throws SQLException {
+        return getRealResultSet().rowInserted();
+    }
+
+    @Override
+    public boolean rowUpdated() throws SQLException {
+        return getRealResultSet().rowUpdated();
+    }
+
+    @Override
+    public void setFetchDirection(int i) throws SQLException {
+        getRealResultSet().setFetchDirection(i);
+    }
+
+    @Override
+    public void setFetchSize(int i) throws SQLException {
+        getRealResultSet().setFetchSize(i);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return getRealResultSet().unwrap(aClass);
+    }
+
+    @Override
+    public void updateArray(String s, Array array) throws SQLException {
+        getRealResultSet().updateArray(s, array);
+    }
+
+    @Override
+    public void updateArray(int i, Array array) throws SQLException {
+        getRealResultSet().updateArray(i, array);
+    }
+
+    @Override
+    public void updateAsciiStream(String s, InputStream inputStream, int i) throws SQLException {
+        getRealResultSet().updateAsciiStream(s, inputStream, i);
+    }
+
+    @Override
+    public void updateAsciiStream(String s, InputStream inputStream, long l) throws SQLException {
+        getRealResultSet().updateAsciiStream(s, inputStream, l);
+    }
+
+    @Override
+    public void updateAsciiStream(String s, InputStream inputStream) throws SQLException {
+        getRealResultSet().updateAsciiStream(s, inputStream);
+    }
+
+    @Override
+    public void updateAsciiStream(int i, InputStream inputStream, int i1) throws SQLException {
+        getRealResultSet().updateAsciiStream(i, inputStream, i1);
+    }
+
+    @Override
+    public void updateAsciiStream(int i, InputStream inputStream, long l) throws SQLException {
+        getRealResultSet().updateAsciiStream(i, inputStream, l);
+    }
+
+    @Override
+    public void updateAsciiStream(int i, InputStream inputStream) throws SQLException {
+        getRealResultSet().updateAsciiStream(i, inputStream);
+    }
+
+    @Override
+    public void updateBigDecimal(String s, BigDecimal bigDecimal) throws SQLException {
+        getRealResultSet().updateBigDecimal(s, bigDecimal);
+    }
+
+    @Override
+    public void updateBigDecimal(int i, BigDecimal bigDecimal) throws SQLException {
+        getRealResultSet().updateBigDecimal(i, bigDecimal);
+    }
+
+    @Override
+    public void updateBinaryStream(String s, InputStream inputStream, int i) throws SQLException {
+        getRealResultSet().updateBinaryStream(s, inputStream, i);
+    }
+
+    @Override
+    public void updateBinaryStream(String s, InputStream inputStream, long l) throws SQLException {
+        getRealResultSet().updateBinaryStream(s, inputStream, l);
+    }
+
+    @Override
+    public void updateBinaryStream(String s, InputStream inputStream) throws SQLException {
+        getRealResultSet().updateBinaryStream(s, inputStream);
+    }
+
+    @Override
+    public void updateBinaryStream(int i, InputStream inputStream, int i1) throws SQLException {
+        getRealResultSet().updateBinaryStream(i, inputStream, i1);
+    }
+
+    @Override
+    public void updateBinaryStream(int i, InputStream inputStream, long l) throws SQLException {
+        getRealResultSet().updateBinaryStream(i, inputStream, l);
+    }
+
+    @Override
+    public void updateBinaryStream(int i, InputStream inputStream) throws SQLException {
+        getRealResultSet().updateBinaryStream(i, inputStream);
+    }
+
+    @Override
+    public void updateBlob(String s, InputStream inputStream, long l) throws SQLException {
+        getRealResultSet().updateBlob(s, inputStream, l);
+    }
+
+    @Override
+    public void updateBlob(String s, InputStream inputStream) throws SQLException {
+        getRealResultSet().updateBlob(s, inputStream);
+    }
+
+    @Override
+    public void updateBlob(String s, Blob blob) throws SQLException {
+        getRealResultSet().updateBlob(s, blob);
+    }
+
+    @Override
+    public void updateBlob(int i, InputStream inputStream, long l) throws SQLException {
+        getRealResultSet().updateBlob(i, inputStream, l);
+    }
+
+    @Override
+    public void updateBlob(int i, InputStream inputStream) throws SQLException {
+        getRealResultSet().updateBlob(i, inputStream);
+    }
+
+    @Override
+    public void updateBlob(int i, Blob blob) throws SQLException {
+        getRealResultSet().updateBlob(i, blob);
+    }
+
+    @Override
+    public void updateBoolean(String s, boolean b) throws SQLException {
+        getRealResultSet().updateBoolean(s, b);
+    }
+
+    @Override
+    public void updateBoolean(int i, boolean b) throws SQLException {
+        getRealResultSet().updateBoolean(i, b);
+    }
+
+    @Override
+    public void updateByte(String s, byte b) throws SQLException {
+        getRealResultSet().updateByte(s, b);
+    }
+
+    @Override
+    public void updateByte(int i, byte b) throws SQLException {
+        getRealResultSet().updateByte(i, b);
+    }
+
+    @Override
+    public void updateBytes(String s, byte[] bs) throws SQLException {
+        getRealResultSet().updateBytes(s, bs);
+    }
+
+    @Override
+    public void updateBytes(int i, byte[] bs) throws SQLException {
+        getRealResultSet().updateBytes(i, bs);
+    }
+
+    @Override
+    public void updateCharacterStream(String s, Reader reader, int i) throws SQLException {
+        getRealResultSet().updateCharacterStream(s, reader, i);
+    }
+
+    @Override
+    public void updateCharacterStream(String s, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateCharacterStream(s, reader, l);
+    }
+
+    @Override
+    public void updateCharacterStream(String s, Reader reader) throws SQLException {
+        getRealResultSet().updateCharacterStream(s, reader);
+    }
+
+    @Override
+    public void updateCharacterStream(int i, Reader reader, int i1) throws SQLException {
+        getRealResultSet().updateCharacterStream(i, reader, i1);
+    }
+
+    @Override
+    public void updateCharacterStream(int i, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateCharacterStream(i, reader, l);
+    }
+
+    @Override
+    public void updateCharacterStream(int i, Reader reader) throws SQLException {
+        getRealResultSet().updateCharacterStream(i, reader);
+    }
+
+    @Override
+    public void updateClob(String s, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateClob(s, reader, l);
+    }
+
+    @Override
+    public void updateClob(String s, Reader reader) throws SQLException {
+        getRealResultSet().updateClob(s, reader);
+    }
+
+    @Override
+    public void updateClob(String s, Clob clob) throws SQLException {
+        getRealResultSet().updateClob(s, clob);
+    }
+
+    @Override
+    public void updateClob(int i, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateClob(i, reader, l);
+    }
+
+    @Override
+    public void updateClob(int i, Reader reader) throws SQLException {
+        getRealResultSet().updateClob(i, reader);
+    }
+
+    @Override
+    public void updateClob(int i, Clob clob) throws SQLException {
+        getRealResultSet().updateClob(i, clob);
+    }
+
+    @Override
+    public void updateDate(String s, java.sql.Date date) throws SQLException {
+        getRealResultSet().updateDate(s, date);
+    }
+
+    @Override
+    public void updateDate(int i, java.sql.Date date) throws SQLException {
+        getRealResultSet().updateDate(i, date);
+    }
+
+    @Override
+    public void updateDouble(String s, double v) throws SQLException {
+        getRealResultSet().updateDouble(s, v);
+    }
+
+    @Override
+    public void updateDouble(int i, double v) throws SQLException {
+        getRealResultSet().updateDouble(i, v);
+    }
+
+    @Override
+    public void updateFloat(String s, float v) throws SQLException {
+        getRealResultSet().updateFloat(s, v);
+    }
+
+    @Override
+    public void updateFloat(int i, float v) throws SQLException {
+        getRealResultSet().updateFloat(i, v);
+    }
+
+    @Override
+    public void updateInt(String s, int i) throws SQLException {
+        getRealResultSet().updateInt(s, i);
+    }
+
+    @Override
+    public void updateInt(int i, int i1) throws SQLException {
+        getRealResultSet().updateInt(i, i1);
+    }
+
+    @Override
+    public void updateLong(String s, long l) throws SQLException {
+        getRealResultSet().updateLong(s, l);
+    }
+
+    @Override
+    public void updateLong(int i, long l) throws SQLException {
+        getRealResultSet().updateLong(i, l);
+    }
+
+    @Override
+    public void updateNCharacterStream(String s, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateNCharacterStream(s, reader, l);
+    }
+
+    @Override
+    public void updateNCharacterStream(String s, Reader reader) throws SQLException {
+        getRealResultSet().updateNCharacterStream(s, reader);
+    }
+
+    @Override
+    public void updateNCharacterStream(int i, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateNCharacterStream(i, reader, l);
+    }
+
+    @Override
+    public void updateNCharacterStream(int i, Reader reader) throws SQLException {
+        getRealResultSet().updateNCharacterStream(i, reader);
+    }
+
+    @Override
+    public void updateNClob(String s, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateNClob(s, reader, l);
+    }
+
+    @Override
+    public void updateNClob(String s, Reader reader) throws SQLException {
+        getRealResultSet().updateNClob(s, reader);
+    }
+
+    @Override
+    public void updateNClob(String s, NClob nClob) throws SQLException {
+        getRealResultSet().updateNClob(s, nClob);
+    }
+
+    @Override
+    public void updateNClob(int i, Reader reader, long l) throws SQLException {
+        getRealResultSet().updateNClob(i, reader, l);
+    }
+
+    @Override
+    public void updateNClob(int i, Reader reader) throws SQLException {
+        getRealResultSet().updateNClob(i, reader);
+    }
+
+    @Override
+    public void updateNClob(int i, NClob nClob) throws SQLException {
+        getRealResultSet().updateNClob(i, nClob);
+    }
+
+    @Override
+    public void updateNString(String s, String s1) throws SQLException {
+        getRealResultSet().updateNString(s, s1);
+    }
+
+    @Override
+    public void updateNString(int i, String s) throws SQLException {
+        getRealResultSet().updateNString(i, s);
+    }
+
+    @Override
+    public void updateNull(String s) throws SQLException {
+        getRealResultSet().updateNull(s);
+    }
+
+    @Override
+    public void updateNull(int i) throws SQLException {
+        getRealResultSet().updateNull(i);
+    }
+
+    @Override
+    public void updateObject(String s, Object o, int i) throws SQLException {
+        getRealResultSet().updateObject(s, o, i);
+    }
+
+    @Override
+    public void updateObject(String s, Object o) throws SQLException {
+        getRealResultSet().updateObject(s, o);
+    }
+
+    @Override
+    public void updateObject(int i, Object o, int i1) throws SQLException {
+        getRealResultSet().updateObject(i, o, i1);
+    }
+
+    @Override
+    public void updateObject(int i, Object o) throws SQLException {
+        getRealResultSet().updateObject(i, o);
+    }
+
+    @Override
+    public void updateRef(String s, Ref ref) throws SQLException {
+        getRealResultSet().updateRef(s, ref);
+    }
+
+    @Override
+    public void updateRef(int i, Ref ref) throws SQLException {
+        getRealResultSet().updateRef(i, ref);
+    }
+
+    @Override
+    public void updateRow() throws SQLException {
+        getRealResultSet().updateRow();
+    }
+
+    @Override
+    public void updateRowId(String s, RowId rowId) throws SQLException {
+        getRealResultSet().updateRowId(s, rowId);
+    }
+
+    @Override
+    public void updateRowId(int i, RowId rowId) throws SQLException {
+        getRealResultSet().updateRowId(i, rowId);
+    }
+
+    @Override
+    public void updateSQLXML(String s, SQLXML sQLXML) throws SQLException {
+        getRealResultSet().updateSQLXML(s, sQLXML);
+    }
+
+    @Override
+    public void updateSQLXML(int i, SQLXML sQLXML) throws SQLException {
+        getRealResultSet().updateSQLXML(i, sQLXML);
+    }
+
+    @Override
+    public void updateShort(String s, short i) throws SQLException {
+        getRealResultSet().updateShort(s, i);
+    }
+
+    @Override
+    public void updateShort(int i, short i1) throws SQLException {
+        getRealResultSet().updateShort(i, i1);
+    }
+
+    @Override
+    public void updateString(String s, String s1) throws SQLException {
+        getRealResultSet().updateString(s, s1);
+    }
+
+    @Override
+    public void updateString(int i, String s) throws SQLException {
+        getRealResultSet().updateString(i, s);
+    }
+
+    @Override
+    public void updateTime(String s, Time time) throws SQLException {
+        getRealResultSet().updateTime(s, time);
+    }
+
+    @Override
+    public void updateTime(int i, Time time) throws SQLException {
+        getRealResultSet().updateTime(i, time);
+    }
+
+    @Override
+    public void updateTimestamp(String s, Timestamp timestamp) throws SQLException {
+        getRealResultSet().updateTimestamp(s, timestamp);
+    }
+
+    @Override
+    public void updateTimestamp(int i, Timestamp timestamp) throws SQLException {
+        getRealResultSet().updateTimestamp(i, timestamp);
+    }
+
+    @Override
+    public boolean wasNull() throws SQLException {
+        return getRealResultSet().wasNull();
+    }
+}
+
+//缓存结果的只读视图:与缓存中的CachedRowSet共享行数据,只有自己的游标,创建时不复制任何行.
+// createShared()的副本关闭时会清空共享的行,所以close()只放开副本而不关闭它;
+// 调用方需要修改结果时,unwrap(CachedRowSet.class)才复制出一份属于自己的CachedRowSet
+class CachedResultView extends AbstractResultSetProxy {
+    private final CachedRowSet rows;
+    private CachedRowSet shared;
+
+    CachedResultView(CachedRowSet rows) throws SQLException {
+        this.rows = rows;
+        this.shared = (CachedRowSet) rows.createShared();
+        // 副本会复制原结果当前的游标位置:
+        this.shared.beforeFirst();
+    }
+
+    @Override
+    protected ResultSet getRealResultSet() throws SQLException {
+        if (shared == null) {
+            throw new SQLException("ResultSet is closed");
+        }
+        return shared;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        shared = null;
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return shared == null;
+    }
+
+    // 不能把共享的副本交给调用方,否则关闭它会清空缓存中的行:
+    @Override
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        if (!isWrapperFor(aClass)) {
+            throw new SQLException("Not a wrapper for " + aClass.getName());
+        }
+        getRealResultSet();
+        return aClass.cast(QueryResultCache.copyOf(rows));
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return aClass.isAssignableFrom(CachedRowSet.class);
+    }
+}
+
+//执行一次查询,供查询缓存在未命中时调用
+interface SqlQuery {
+    ResultSet execute() throws SQLException;
+}
+
+//查询结果缓存的key:SQL加上绑定的参数
+class QueryKey {
+    final String sql;
+    final List<Object> params;
+    private final int hash;
+
+    QueryKey(String sql, List<Object> params) {
+        this.sql = sql;
+        this.params = params;
+        this.hash = sql.hashCode() * 31 + params.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof QueryKey)) {
+            return false;
+        }
+        QueryKey other = (QueryKey) o;
+        return sql.equals(other.sql) && params.equals(other.params);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
+
+//读穿透的查询结果缓存:按字节数限制总大小,超过TTL的结果过期,空间不足时淘汰最久未使用(LRU)的结果,
+// 同一个CachingDataSource执行写操作后按表名失效相关结果
+class QueryResultCache {
+    private static final RowSetFactory ROW_SET_FACTORY;
+    // FROM和JOIN后面是一个或多个表:
+    private static final Pattern TABLE_LIST_START = Pattern.compile("(?i)\\b(?:FROM|JOIN)\\b");
+    // 表名列表中的一个记号:名字、逗号或括号:
+    private static final Pattern TABLE_LIST_TOKEN = Pattern.compile("\\s*([`\\w.$]+|[,()])");
+    // 只写入一张表的INSERT/REPLACE/DELETE:
+    private static final Pattern SINGLE_WRITE = Pattern.compile(
+            "(?i)\\s*(INSERT(?:\\s+IGNORE)?\\s+INTO|REPLACE(?:\\s+INTO)?|DELETE\\s+FROM)\\s+([`\\w.$]+)(\\s*,|\\s+USING\\b)?");
+    // UPDATE和SET之间是写入的表,可能是逗号分隔的多个表或JOIN:
+    private static final Pattern UPDATE_TABLES = Pattern.compile(
+            "(?i)\\s*UPDATE(?:\\s+LOW_PRIORITY)?(?:\\s+IGNORE)?\\s+(.*?)\\bSET\\b", Pattern.DOTALL);
+    // ON条件之后结束这一段表引用的子句:
+    private static final Pattern CLAUSE_END = Pattern.compile(
+            "(?i)\\b(?:WHERE|GROUP|ORDER|HAVING|LIMIT|UNION|JOIN|SET|WINDOW|FOR)\\b");
+    // 表名后面出现这些词时不是别名:
+    private static final Set<String> TABLE_LIST_KEYWORDS = Set.of("WHERE", "JOIN", "INNER", "LEFT", "RIGHT", "CROSS",
+            "FULL", "OUTER", "NATURAL", "STRAIGHT_JOIN", "ON", "USING", "GROUP", "ORDER", "HAVING", "LIMIT", "UNION",
+            "FOR", "LOCK", "WINDOW", "INTO", "SET", "USE", "FORCE", "IGNORE", "PARTITION", "EXCEPT", "INTERSECT", "AS");
+    // 加锁读必须读数据库中的最新数据:
+    private static final Pattern LOCKING_READ = Pattern.compile("(?i)\\bFOR\\s+(?:UPDATE|SHARE)\\b|\\bLOCK\\s+IN\\s+SHARE\\s+MODE\\b");
+
+    static {
+        try {
+            ROW_SET_FACTORY = RowSetProvider.newFactory();
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 按访问顺序排列,最久未使用的在最前面:
+    private final LinkedHashMap<QueryKey, CachedResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // 表名到相关缓存结果的索引,用于按表失效:
+    private final Map<String, Set<QueryKey>> keysByTable = new HashMap<>();
+    // 每张表的失效次数,查询期间表被写过时结果不能放入缓存:
+    private final Map<String, Long> tableVersions = new HashMap<>();
+    // invalidateAll()的次数:
+    private long globalVersion = 0;
+    private long currentBytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // maxBytes:缓存结果的总大小上限(估算的字节数),ttlMillis:结果的有效期
+    public QueryResultCache(long maxBytes, long ttlMillis) {
+        if (maxBytes <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Invalid cache settings: maxBytes=" + maxBytes + ", ttl=" + ttlMillis);
+        }
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    // 命中时返回缓存结果,未命中时执行查询并把结果放入缓存.
+    // 返回的ResultSet是共享行数据的只读视图,每个调用方有独立的游标,命中时不复制行:
+    ResultSet query(QueryKey key, SqlQuery query) throws SQLException {
+        CachedRowSet cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            return new CachedResultView(cached);
+        }
+        misses.increment();
+        Set<String> tables = readTables(key.sql);
+        if (tables == null) {
+            // 无法确定读取了哪些表,写操作之后无法失效,所以不缓存:
+            return query.execute();
+        }
+        long[] versions = versionsOf(tables);
+        CachedRowSet rows = ROW_SET_FACTORY.createCachedRowSet();
+        rows.setConcurrency(ResultSet.CONCUR_READ_ONLY);
+        rows.setReadOnly(true);
+        try (ResultSet rs = query.execute()) {
+            rows.populate(rs);
+        }
+        put(key, rows, estimateBytes(rows), tables, versions);
+        return new CachedResultView(rows);
+    }
+
+    // createShared()的副本和原结果共享行数据,关闭副本时会清空这些行,
+    // 所以需要可修改的结果时复制出新的CachedRowSet,临时的共享副本不关闭:
+    static CachedRowSet copyOf(CachedRowSet rows) throws SQLException {
+        CachedRowSet copy = ROW_SET_FACTORY.createCachedRowSet();
+        copy.setConcurrency(ResultSet.CONCUR_READ_ONLY);
+        copy.setReadOnly(true);
+        copy.populate(rows.createShared());
+        return copy;
+    }
+
+    private CachedRowSet get(QueryKey key) {
+        lock.lock();
+        try {
+            CachedResult result = entries.get(key);
+            if (result == null) {
+                return null;
+            }
+            if (System.nanoTime() - result.createdAt > ttlNanos) {
+                remove(key);
+                return null;
+            }
+            return result.rows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(QueryKey key, CachedRowSet rows, long bytes, Set<String> tables, long[] versions) {
+        // 单个结果超过总大小的1/4时不缓存,避免一次淘汰大量结果:
+        if (bytes > maxBytes / 4) {
+            return;
+        }
+        lock.lock();
+        try {
+            // 查询期间相关的表被写过,结果可能已经过时:
+            if (!Arrays.equals(versions, versionsOf(tables))) {
+                return;
+            }
+            remove(key);
+            entries.put(key, new CachedResult(rows, bytes, tables, System.nanoTime()));
+            for (String table : tables) {
+                keysByTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+            }
+            currentBytes += bytes;
+            Iterator<QueryKey> eldest = entries.keySet().iterator();
+            while (currentBytes > maxBytes && eldest.hasNext()) {
+                QueryKey k = eldest.next();
+                CachedResult r = entries.get(k);
+                eldest.remove();
+                unindex(k, r);
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 使某张表相关的结果全部失效:
+    public void invalidateTable(String table) {
+        String name = normalize(table);
+        lock.lock();
+        try {
+            tableVersions.merge(name, 1L, Long::sum);
+            Set<QueryKey> keys = keysByTable.remove(name);
+            if (keys != null) {
+                for (QueryKey key : keys) {
+                    remove(key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            globalVersion++;
+            entries.clear();
+            keysByTable.clear();
+            currentBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(QueryKey key) {
+        CachedResult result = entries.remove(key);
+        if (result != null) {
+            unindex(key, result);
+        }
+    }
+
+    private void unindex(QueryKey key, CachedResult result) {
+        currentBytes -= result.bytes;
+        for (String table : result.tables) {
+            Set<QueryKey> keys = keysByTable.get(table);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    keysByTable.remove(table);
+                }
+            }
+        }
+    }
+
+    // 第一个元素是globalVersion,后面依次是各表的版本:
+    private long[] versionsOf(Set<String> tables) {
+        lock.lock();
+        try {
+            long[] versions = new long[tables.size() + 1];
+            versions[0] = globalVersion;
+            int i = 1;
+            for (String table : tables) {
+                versions[i++] = tableVersions.getOrDefault(table, 0L);
+            }
+            return versions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public long getSizeBytes() {
+        lock.lock();
+        try {
+            return currentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryResultCache{hits=%d, misses=%d, hitRatio=%.3f, evictions=%d, bytes=%d/%d}",
+                getHitCount(), getMissCount(), getHitRatio(), getEvictionCount(), getSizeBytes(), maxBytes);
+    }
+
+    // SELECT语句读取的表,用LinkedHashSet保证版本数组的顺序固定.
+    // 包括FROM和JOIN后面逗号分隔的全部表;无法完整识别(例如FROM后面是子查询)时返回null,这样的查询不缓存:
+    static Set<String> readTables(String sql) {
+        Set<String> tables = new LinkedHashSet<>();
+        return addJoinedTables(sql, tables) ? tables : null;
+    }
+
+    // 写操作写入的表,无法识别(例如多表DELETE、TRUNCATE、DDL、UPDATE中的子查询)时返回null,由调用方失效全部结果:
+    static Set<String> writeTables(String sql) {
+        Matcher m = SINGLE_WRITE.matcher(sql);
+        if (m.lookingAt()) {
+            // DELETE FROM a, b ...或DELETE FROM a USING ...会删除多张表的行:
+            return m.group(3) == null ? Set.of(normalize(m.group(2))) : null;
+        }
+        m = UPDATE_TABLES.matcher(sql);
+        if (m.lookingAt()) {
+            String tableReferences = m.group(1);
+            Set<String> tables = new LinkedHashSet<>();
+            if (tableReferences.indexOf('(') >= 0 || parseTableList(tableReferences, 0, tables) < 0
+                    || !addJoinedTables(tableReferences, tables)) {
+                return null;
+            }
+            return tables;
+        }
+        return null;
+    }
+
+    // 加入每个FROM和JOIN后面的表,有无法识别的表时返回false:
+    private static boolean addJoinedTables(String sql, Set<String> tables) {
+        Matcher m = TABLE_LIST_START.matcher(sql);
+        while (m.find()) {
+            int end = parseTableList(sql, m.end(), tables);
+            String next = end < 0 ? null : nextToken(TABLE_LIST_TOKEN.matcher(sql), sql, end);
+            if (end < 0 || ("ON".equalsIgnoreCase(next) || "USING".equalsIgnoreCase(next))
+                    && tableAfterJoinCondition(sql, end)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // "FROM a JOIN b ON a.id = b.id, c"中ON/USING条件后面用逗号接着的表不容易识别,遇到时按无法识别处理:
+    private static boolean tableAfterJoinCondition(String sql, int pos) {
+        Matcher clause = CLAUSE_END.matcher(sql);
+        int end = clause.find(pos) ? clause.start() : sql.length();
+        int depth = 0;
+        for (int i = pos; i < end; i++) {
+            char c = sql.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return getRealConnection().prepareStatement(sql);
+    // 从pos开始解析"表 [AS] [别名], 表 [AS] [别名], ..."并加入tables,返回结束的位置;
+    // 遇到子查询或其他无法识别的内容时返回-1:
+    private static int parseTableList(String sql, int pos, Set<String> tables) {
+        Matcher m = TABLE_LIST_TOKEN.matcher(sql);
+        while (true) {
+            String table = nextToken(m, sql, pos);
+            if (table == null || !isName(table)) {
+                return -1;
+            }
+            tables.add(normalize(table));
+            pos = m.end();
+            String next = nextToken(m, sql, pos);
+            if ("AS".equalsIgnoreCase(next)) {
+                if (!isName(nextToken(m, sql, m.end()))) {
+                    return -1;
+                }
+                pos = m.end();
+                next = nextToken(m, sql, pos);
+            } else if (isName(next)) {
+                pos = m.end();
+                next = nextToken(m, sql, pos);
+            }
+            if (!",".equals(next)) {
+                return pos;
+            }
+            pos = m.end();
+        }
     }
 
-    //Connection接口定义的其他方法全部实现一遍,so much.
-    @Override
-    public void beginRequest() throws SQLException {
+    private static String nextToken(Matcher m, String sql, int pos) {
+        m.region(pos, sql.length());
+        return m.lookingAt() ? m.group(1) : null;
+    }
 
+    // 表名或别名,关键字不算:
+    private static boolean isName(String token) {
+        return token != null && !token.equals(",") && !token.equals("(") && !token.equals(")")
+                && !TABLE_LIST_KEYWORDS.contains(token.toUpperCase());
     }
 
-    @Override
-    public void endRequest() throws SQLException {
+    static boolean isSelect(String sql) {
+        return sql.stripLeading().regionMatches(true, 0, "SELECT", 0, 6);
+    }
 
+    static boolean isCacheable(String sql) {
+        return isSelect(sql) && !LOCKING_READ.matcher(sql).find();
     }
 
-    @Override
-    public boolean setShardingKeyIfValid(ShardingKey shardingKey, ShardingKey superShardingKey, int timeout) throws SQLException {
-        return false;
+    // 去掉反引号和库名前缀,统一小写:
+    private static String normalize(String table) {
+        String name = table.replace("`", "");
+        int dot = name.lastIndexOf('.');
+        return (dot >= 0 ? name.substring(dot + 1) : name).toLowerCase();
     }
 
-    @Override
-    public boolean setShardingKeyIfValid(ShardingKey shardingKey, int timeout) throws SQLException {
-        return false;
+    // 粗略估算结果占用的堆内存:
+    private static long estimateBytes(CachedRowSet rows) throws SQLException {
+        int columns = rows.getMetaData().getColumnCount();
+        long bytes = 256;
+        rows.beforeFirst();
+        while (rows.next()) {
+            bytes += 16 + 8L * columns;
+            for (int i = 1; i <= columns; i++) {
+                Object value = rows.getObject(i);
+                if (value instanceof String) {
+                    bytes += 40 + 2L * ((String) value).length();
+                } else if (value instanceof byte[]) {
+                    bytes += 16 + ((byte[]) value).length;
+                } else if (value != null) {
+                    bytes += 24;
+                }
+            }
+        }
+        rows.beforeFirst();
+        return bytes;
     }
 
-    @Override
-    public void setShardingKey(ShardingKey shardingKey, ShardingKey superShardingKey) throws SQLException {
+    private static class CachedResult {
+        final CachedRowSet rows;
+        final long bytes;
+        final Set<String> tables;
+        final long createdAt;
 
+        CachedResult(CachedRowSet rows, long bytes, Set<String> tables, long createdAt) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.tables = tables;
+            this.createdAt = createdAt;
+        }
     }
+}
 
-    @Override
-    public void setShardingKey(ShardingKey shardingKey) throws SQLException {
+//在任意DataSource前面加一层查询结果缓存,例如new CachingDataSource(pooledDataSource, new QueryResultCache(64 << 20, 60_000))
+class CachingDataSource implements DataSource {
+    private final DataSource target;
+    private final QueryResultCache cache;
 
+    public CachingDataSource(DataSource target, QueryResultCache cache) {
+        this.target = target;
+        this.cache = cache;
     }
 
-    @Override
-    public int hashCode() {
-        return super.hashCode();
+    public QueryResultCache getCache() {
+        return cache;
     }
 
     @Override
-    public boolean equals(Object obj) {
-        return super.equals(obj);
+    public Connection getConnection() throws SQLException {
+        return new CachingConnectionProxy(target.getConnection(), cache);
     }
 
     @Override
-    protected Object clone() throws CloneNotSupportedException {
-        return super.clone();
+    public Connection getConnection(String username, String password) throws SQLException {
+        return new CachingConnectionProxy(target.getConnection(username, password), cache);
     }
 
     @Override
-    public String toString() {
-        return super.toString();
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
     }
 
     @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
+    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+        target.setLogWriter(printWriter);
     }
 
     @Override
-    public CallableStatement prepareCall(String s) throws SQLException {
-        return null;
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
     }
 
     @Override
-    public String nativeSQL(String s) throws SQLException {
-        return null;
+    public void setLoginTimeout(int i) throws SQLException {
+        target.setLoginTimeout(i);
     }
 
     @Override
-    public boolean getAutoCommit() throws SQLException {
-        return false;
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return target.getParentLogger();
     }
 
     @Override
-    public void setAutoCommit(boolean b) throws SQLException {
-
+    public <T> T unwrap(Class<T> aClass) throws SQLException {
+        return target.unwrap(aClass);
     }
 
     @Override
-    public void commit() throws SQLException {
+    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
+        return target.isWrapperFor(aClass);
+    }
+}
 
+//带查询缓存的连接代理:SELECT先查缓存,写操作执行后按表名失效.
+// 事务中有未提交的写操作时,本连接的查询不读也不写缓存,提交或回滚后再次失效写过的表
+class CachingConnectionProxy extends AbstractConnectionProxy {
+    private final Connection target;
+    private final QueryResultCache cache;
+    // 当前事务中写过的表:
+    private final Set<String> writtenTables = new HashSet<>();
+    // 当前事务中有无法识别表名的写操作:
+    private boolean writtenUnknown = false;
+
+    CachingConnectionProxy(Connection target, QueryResultCache cache) {
+        this.target = target;
+        this.cache = cache;
     }
 
     @Override
-    public void rollback() throws SQLException {
-
+    protected Connection getRealConnection() {
+        return target;
     }
 
     @Override
-    public void close() throws SQLException {
-
+    public Statement createStatement() throws SQLException {
+        return new CachingStatement(this, target.createStatement());
     }
 
     @Override
-    public boolean isClosed() throws SQLException {
-        return false;
+    public Statement createStatement(int i, int i1) throws SQLException {
+        return new CachingStatement(this, target.createStatement(i, i1));
     }
 
     @Override
-    public DatabaseMetaData getMetaData() throws SQLException {
-        return null;
+    public Statement createStatement(int i, int i1, int i2) throws SQLException {
+        return new CachingStatement(this, target.createStatement(i, i1, i2));
     }
 
     @Override
-    public boolean isReadOnly() throws SQLException {
-        return false;
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return new CachingPreparedStatement(this, sql, target.prepareStatement(sql));
     }
 
     @Override
-    public void setReadOnly(boolean b) throws SQLException {
-
+    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
+        return new CachingPreparedStatement(this, s, target.prepareStatement(s, i, i1));
     }
 
     @Override
-    public String getCatalog() throws SQLException {
-        return null;
+    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
+        return new CachingPreparedStatement(this, s, target.prepareStatement(s, i, i1, i2));
     }
 
     @Override
-    public void setCatalog(String s) throws SQLException {
-
+    public PreparedStatement prepareStatement(String s, int i) throws SQLException {
+        return new CachingPreparedStatement(this, s, target.prepareStatement(s, i));
     }
 
     @Override
-    public int getTransactionIsolation() throws SQLException {
-        return 0;
+    public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
+        return new CachingPreparedStatement(this, s, target.prepareStatement(s, ints));
     }
 
     @Override
-    public void setTransactionIsolation(int i) throws SQLException {
-
+    public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
+        return new CachingPreparedStatement(this, s, target.prepareStatement(s, strings));
     }
 
+    // 存储过程可能写任何表:
     @Override
-    public SQLWarning getWarnings() throws SQLException {
-        return null;
+    public CallableStatement prepareCall(String s) throws SQLException {
+        afterWrite(null);
+        return target.prepareCall(s);
     }
 
     @Override
-    public void clearWarnings() throws SQLException {
-
+    public CallableStatement prepareCall(String s, int i, int i1) throws SQLException {
+        afterWrite(null);
+        return target.prepareCall(s, i, i1);
     }
 
     @Override
-    public Statement createStatement(int i, int i1) throws SQLException {
-        return null;
+    public CallableStatement prepareCall(String s, int i, int i1, int i2) throws SQLException {
+        afterWrite(null);
+        return target.prepareCall(s, i, i1, i2);
     }
 
-    @Override
-    public PreparedStatement prepareStatement(String s, int i, int i1) throws SQLException {
-        return null;
+    // 由CachingStatement和CachingPreparedStatement调用,执行查询:
+    ResultSet query(String sql, List<Object> params, SqlQuery query) throws SQLException {
+        if (writtenUnknown || !writtenTables.isEmpty()) {
+            // 本事务有未提交的写操作,查询结果不能给其他连接使用:
+            return query.execute();
+        }
+        return cache.query(new QueryKey(sql, params), query);
     }
 
-    @Override
-    public CallableStatement prepareCall(String s, int i, int i1) throws SQLException {
-        return null;
+    // 执行非SELECT语句之后调用:
+    void afterWrite(String sql) throws SQLException {
+        Set<String> tables = sql == null ? null : QueryResultCache.writeTables(sql);
+        if (tables == null) {
+            cache.invalidateAll();
+        } else {
+            tables.forEach(cache::invalidateTable);
+        }
+        if (!target.getAutoCommit()) {
+            if (tables == null) {
+                writtenUnknown = true;
+            } else {
+                writtenTables.addAll(tables);
+            }
+        }
     }
 
-    @Override
-    public Map<String, Class<?>> getTypeMap() throws SQLException {
-        return null;
+    // 事务结束后再次失效写过的表,防止其他连接在提交前缓存了旧数据:
+    private void endTransaction() {
+        if (writtenUnknown) {
+            cache.invalidateAll();
+        } else {
+            writtenTables.forEach(cache::invalidateTable);
+        }
+        writtenTables.clear();
+        writtenUnknown = false;
     }
 
     @Override
-    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
-
+    public void commit() throws SQLException {
+        try {
+            target.commit();
+        } finally {
+            endTransaction();
+        }
     }
 
     @Override
-    public int getHoldability() throws SQLException {
-        return 0;
+    public void rollback() throws SQLException {
+        try {
+            target.rollback();
+        } finally {
+            endTransaction();
+        }
     }
 
     @Override
-    public void setHoldability(int i) throws SQLException {
-
+    public void rollback(Savepoint savepoint) throws SQLException {
+        target.rollback(savepoint);
     }
 
     @Override
-    public Savepoint setSavepoint() throws SQLException {
-        return null;
+    public void setAutoCommit(boolean b) throws SQLException {
+        try {
+            target.setAutoCommit(b);
+        } finally {
+            // 切换为自动提交时会提交当前事务:
+            if (b) {
+                endTransaction();
+            }
+        }
     }
 
     @Override
-    public Savepoint setSavepoint(String s) throws SQLException {
-        return null;
+    public void close() throws SQLException {
+        try {
+            target.close();
+        } finally {
+            endTransaction();
+        }
     }
 
     @Override
-    public void rollback(Savepoint savepoint) throws SQLException {
-
+    public boolean isClosed() throws SQLException {
+        return target.isClosed();
     }
+}
 
-    @Override
-    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+//非SELECT语句执行后失效相关表;executeQuery()走查询缓存
+class CachingStatement extends AbstractStatementProxy {
+    private final CachingConnectionProxy connection;
+    private final Statement target;
+    // addBatch()加入的SQL,executeBatch()之后失效:
+    private final List<String> batch = new ArrayList<>();
 
+    CachingStatement(CachingConnectionProxy connection, Statement target) {
+        this.connection = connection;
+        this.target = target;
     }
 
     @Override
-    public Statement createStatement(int i, int i1, int i2) throws SQLException {
-        return null;
+    protected Statement getRealStatement() {
+        return target;
     }
 
     @Override
-    public PreparedStatement prepareStatement(String s, int i, int i1, int i2) throws SQLException {
-        return null;
+    public ResultSet executeQuery(String s) throws SQLException {
+        if (!QueryResultCache.isCacheable(s)) {
+            return target.executeQuery(s);
+        }
+        return connection.query(s, List.of(), () -> target.executeQuery(s));
     }
 
     @Override
-    public CallableStatement prepareCall(String s, int i, int i1, int i2) throws SQLException {
-        return null;
+    public boolean execute(String s) throws SQLException {
+        boolean result = target.execute(s);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public PreparedStatement prepareStatement(String s, int i) throws SQLException {
-        return null;
+    public boolean execute(String s, int i) throws SQLException {
+        boolean result = target.execute(s, i);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public PreparedStatement prepareStatement(String s, int[] ints) throws SQLException {
-        return null;
+    public boolean execute(String s, int[] ints) throws SQLException {
+        boolean result = target.execute(s, ints);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public PreparedStatement prepareStatement(String s, String[] strings) throws SQLException {
-        return null;
+    public boolean execute(String s, String[] strings) throws SQLException {
+        boolean result = target.execute(s, strings);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public Clob createClob() throws SQLException {
-        return null;
+    public int executeUpdate(String s) throws SQLException {
+        int result = target.executeUpdate(s);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public Blob createBlob() throws SQLException {
-        return null;
+    public int executeUpdate(String s, int i) throws SQLException {
+        int result = target.executeUpdate(s, i);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public NClob createNClob() throws SQLException {
-        return null;
+    public int executeUpdate(String s, int[] ints) throws SQLException {
+        int result = target.executeUpdate(s, ints);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public SQLXML createSQLXML() throws SQLException {
-        return null;
+    public int executeUpdate(String s, String[] strings) throws SQLException {
+        int result = target.executeUpdate(s, strings);
+        afterExecute(s);
+        return result;
     }
 
     @Override
-    public boolean isValid(int i) throws SQLException {
-        return false;
+    public void addBatch(String s) throws SQLException {
+        target.addBatch(s);
+        batch.add(s);
     }
 
     @Override
-    public void setClientInfo(String s, String s1) throws SQLClientInfoException {
-
+    public void clearBatch() throws SQLException {
+        target.clearBatch();
+        batch.clear();
     }
 
     @Override
-    public String getClientInfo(String s) throws SQLException {
-        return null;
+    public int[] executeBatch() throws SQLException {
+        try {
+            return target.executeBatch();
+        } finally {
+            for (String s : batch) {
+                afterExecute(s);
+            }
+            batch.clear();
+        }
     }
 
     @Override
-    public Properties getClientInfo() throws SQLException {
-        return null;
+    public Connection getConnection() throws SQLException {
+        return connection;
     }
 
-    @Override
-    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+    private void afterExecute(String sql) throws SQLException {
+        if (!QueryResultCache.isSelect(sql)) {
+            connection.afterWrite(sql);
+        }
+    }
+}
 
+//记录绑定的参数作为缓存key的一部分.
+// 只记录常见类型的setXxx();调用了其他方法(例如setBinaryStream())时参数无法作为key,本次执行不使用缓存
+class CachingPreparedStatement extends AbstractPreparedStatementProxy {
+    // setNull()在参数列表中的占位对象:
+    private static final Object NULL = new Object() {
+        @Override
+        public String toString() {
+            return "NULL";
+        }
+    };
+
+    private final CachingConnectionProxy connection;
+    private final String sql;
+    private final PreparedStatement target;
+    private final boolean select;
+    private final boolean cacheable;
+    private final List<Object> params = new ArrayList<>();
+    // 绑定的参数是否全部记录下来了:
+    private boolean paramsKnown = true;
+
+    CachingPreparedStatement(CachingConnectionProxy connection, String sql, PreparedStatement target) {
+        this.connection = connection;
+        this.sql = sql;
+        this.target = target;
+        this.select = QueryResultCache.isSelect(sql);
+        this.cacheable = QueryResultCache.isCacheable(sql);
     }
 
+    // 没有被下面覆写的方法都会经过这里:
     @Override
-    public Array createArrayOf(String s, Object[] objects) throws SQLException {
-        return null;
+    protected PreparedStatement getRealStatement() {
+        paramsKnown = false;
+        return target;
     }
 
-    @Override
-    public Struct createStruct(String s, Object[] objects) throws SQLException {
-        return null;
+    private void bind(int i, Object value) {
+        while (params.size() < i) {
+            params.add(NULL);
+        }
+        params.set(i - 1, value);
     }
 
     @Override
-    public String getSchema() throws SQLException {
-        return null;
+    public void setNull(int i, int i1) throws SQLException {
+        target.setNull(i, i1);
+        bind(i, NULL);
     }
 
     @Override
-    public void setSchema(String s) throws SQLException {
-
+    public void setBoolean(int i, boolean b) throws SQLException {
+        target.setBoolean(i, b);
+        bind(i, b);
     }
 
     @Override
-    public void abort(Executor executor) throws SQLException {
-
+    public void setInt(int i, int i1) throws SQLException {
+        target.setInt(i, i1);
+        bind(i, i1);
     }
 
     @Override
-    public void setNetworkTimeout(Executor executor, int i) throws SQLException {
-
+    public void setLong(int i, long l) throws SQLException {
+        target.setLong(i, l);
+        bind(i, l);
     }
 
     @Override
-    public int getNetworkTimeout() throws SQLException {
-        return 0;
+    public void setDouble(int i, double v) throws SQLException {
+        target.setDouble(i, v);
+        bind(i, v);
     }
 
     @Override
-    public <T> T unwrap(Class<T> aClass) throws SQLException {
-        return null;
+    public void setBigDecimal(int i, BigDecimal bigDecimal) throws SQLException {
+        target.setBigDecimal(i, bigDecimal);
+        bind(i, bigDecimal == null ? NULL : bigDecimal);
     }
 
     @Override
-    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-        return false;
+    public void setString(int i, String s) throws SQLException {
+        target.setString(i, s);
+        bind(i, s == null ? NULL : s);
     }
 
-}
-
-//懒连接代理
-class LazyConnectionProxy extends AbstractConnectionProxy {
-    private final Supplier<Connection> supplier;
-    private Connection target = null;
-
-    public LazyConnectionProxy(Supplier<Connection> supplier) {
-        this.supplier = supplier;
+    @Override
+    public void setDate(int i, java.sql.Date date) throws SQLException {
+        target.setDate(i, date);
+        bind(i, date == null ? NULL : date);
     }
 
-    // 覆写close方法：只有target不为null时才需要关闭:
-    public void close() throws SQLException {
-        if (target != null) {
-            System.out.println("Close connection: " + target);
-            super.close();
-        }
+    @Override
+    public void setTimestamp(int i, Timestamp timestamp) throws SQLException {
+        target.setTimestamp(i, timestamp);
+        bind(i, timestamp == null ? NULL : timestamp);
     }
 
     @Override
-    protected Connection getRealConnection() {
-        if (target == null) {
-            target = supplier.get();
+    public void setObject(int i, Object o) throws SQLException {
+        target.setObject(i, o);
+        if (o == null) {
+            bind(i, NULL);
+        } else if (o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof java.util.Date) {
+            bind(i, o);
+        } else {
+            paramsKnown = false;
         }
-        return target;
-    }
-}
-
-//懒连接维护
-class LazyDataSource implements DataSource {
-    private final String url;
-    private final String username;
-    private final String password;
-
-    public LazyDataSource(String url, String username, String password) {
-        this.url = url;
-        this.username = username;
-        this.password = password;
-    }
-
-    public Connection getConnection(String username, String password) throws SQLException {
-        return new LazyConnectionProxy(() -> {
-            try {
-                System.out.println("pre open");
-                Connection conn = DriverManager.getConnection(url, username, password);
-                System.out.println("Open connection: " + conn);
-                return conn;
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
-        });
     }
 
     @Override
-    public Connection getConnection() throws SQLException {
-        return null;
+    public void clearParameters() throws SQLException {
+        target.clearParameters();
+        params.clear();
+        paramsKnown = true;
     }
 
     @Override
-    public PrintWriter getLogWriter() throws SQLException {
-        return null;
+    public ResultSet executeQuery() throws SQLException {
+        if (!cacheable || !paramsKnown) {
+            return target.executeQuery();
+        }
+        return connection.query(sql, new ArrayList<>(params), target::executeQuery);
     }
 
     @Override
-    public void setLogWriter(PrintWriter printWriter) throws SQLException {
-
+    public int executeUpdate() throws SQLException {
+        int result = target.executeUpdate();
+        connection.afterWrite(sql);
+        return result;
     }
 
     @Override
-    public int getLoginTimeout() throws SQLException {
-        return 0;
+    public boolean execute() throws SQLException {
+        boolean result = target.execute();
+        if (!select) {
+            connection.afterWrite(sql);
+        }
+        return result;
     }
 
     @Override
-    public void setLoginTimeout(int i) throws SQLException {
+    public void addBatch() throws SQLException {
+        target.addBatch();
+    }
 
+    @Override
+    public int[] executeBatch() throws SQLException {
+        try {
+            return target.executeBatch();
+        } finally {
+            connection.afterWrite(sql);
+        }
     }
 
     @Override
-    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
-        return null;
+    public void close() throws SQLException {
+        target.close();
     }
 
     @Override
-    public <T> T unwrap(Class<T> aClass) throws SQLException {
-        return null;
+    public boolean isClosed() throws SQLException {
+        return target.isClosed();
     }
 
     @Override
-    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-        return false;
+    public Connection getConnection() throws SQLException {
+        return connection;
     }
 }
 
-//实现可复用Connection的连接池
-class PooledConnectionProxy extends AbstractConnectionProxy {
-    // 实际的Connection:
-    Connection target;
-    // 空闲队列:
-    Queue<PooledConnectionProxy> idleQueue;
+/**
+ * 享元:Flyweight
+ */
+class Students {
+    // 持有缓存,最多缓存的数量由系统属性students.cache.maxSize指定:
+    private static final StudentsCache cache = new StudentsCache(Integer.getInteger("students.cache.maxSize", 100_000));
+    private final int id;
+    private final String name;
 
-    public PooledConnectionProxy(Queue<PooledConnectionProxy> idleQueue, Connection target) {
-        this.idleQueue = idleQueue;
-        this.target = target;
+    Students(int id, String name) {
+        this.id = id;
+        this.name = name;
     }
 
-    public void close() throws SQLException {
-        System.out.println("Fake close and released to idle queue for future reuse: " + target);
-        // 并没有调用实际Connection的close()方法,
-        // 而是把自己放入空闲队列:
-        idleQueue.offer(this);
+    // 静态工厂方法,可以被多个线程同时调用.
+    // 超出缓存上限的对象会被淘汰,之后再次请求时返回新创建的对象:
+    public static Students create(int id, String name) {
+        return cache.get(id, name);
     }
 
-    protected Connection getRealConnection() {
-        return target;
+    // 缓存的命中、未命中和淘汰次数:
+    public static StudentsCache getCache() {
+        return cache;
     }
-}
 
-//空闲队列由PooledDataSource负责维护
-class PooledDataSource implements DataSource {
-    private final String url;
-    private final String username;
-    private final String password;
+    public int getId() {
+        return id;
+    }
 
-    // 维护一个空闲队列:
-    private final Queue<PooledConnectionProxy> idleQueue = new ArrayBlockingQueue<>(100);
+    public String getName() {
+        return name;
+    }
+}
 
-    public PooledDataSource(String url, String username, String password) {
-        this.url = url;
-        this.username = username;
-        this.password = password;
+//Students的享元缓存:线性探测的开放地址哈希表,直接按(id, name)查找,命中时不分配任何对象.
+// 命中时不加锁:读取volatile的table后在数组中探测,Students的字段都是final,读到的引用一定是完整初始化的对象.
+// 未命中时加锁后再查一次,然后插入、扩容或淘汰.淘汰时删除元素会移动后面的元素,
+// 同时在读的线程可能暂时找不到某个对象,此时它会进入加锁的慢路径,仍然返回同一个对象.
+// 超出上限时按二次机会(CLOCK)算法淘汰:时钟指针扫过的对象如果最近被命中过,清除标记后跳过,否则淘汰
+class StudentsCache {
+    private final int maxSize;
+    private final int maxCapacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Table table;
+    // 以下字段只在持有lock时访问:
+    private int size;
+    private int hand;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // slots和referenced一起替换,读的线程不会拿到长度不一致的两个数组:
+    private static final class Table {
+        final Students[] slots;
+        // 最近是否被命中过.读的线程不加锁地写入,丢失一次标记只会让淘汰稍有偏差:
+        final boolean[] referenced;
+
+        Table(int capacity) {
+            this.slots = new Students[capacity];
+            this.referenced = new boolean[capacity];
+        }
     }
 
-    public Connection getConnection(String username, String password) throws SQLException {
-        // 首先试图获取一个空闲连接:
-        PooledConnectionProxy conn = idleQueue.poll();
-        if (conn == null) {
-            // 没有空闲连接时，打开一个新连接:
-            conn = openNewConnection();
-        } else {
-            System.out.println("Return pooled connection: " + conn.target);
+    public StudentsCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid maxSize: " + maxSize);
         }
-        return conn;
+        this.maxSize = maxSize;
+        // 装载因子不超过0.5,探测序列保持很短:
+        this.maxCapacity = Integer.highestOneBit(Math.max(maxSize, 1) * 2 - 1) << 1;
+        this.table = new Table(Math.min(16, maxCapacity));
     }
 
-    private PooledConnectionProxy openNewConnection() throws SQLException {
-        Connection conn = DriverManager.getConnection(url, username, password);
-        System.out.println("Open new connection: " + conn);
-        return new PooledConnectionProxy(idleQueue, conn);
+    private static int hash(int id, String name) {
+        int h = id * 0x9E3779B9 + name.hashCode();
+        return h ^ (h >>> 16);
     }
 
-    @Override
-    public Connection getConnection() throws SQLException {
-        return null;
+    public Students get(int id, String name) {
+        Table t = table;
+        Students[] slots = t.slots;
+        int mask = slots.length - 1;
+        for (int i = hash(id, name) & mask; ; i = (i + 1) & mask) {
+            Students std = slots[i];
+            if (std == null) {
+                break;
+            }
+            if (std.getId() == id && std.getName().equals(name)) {
+                if (!t.referenced[i]) {
+                    t.referenced[i] = true;
+                }
+                hits.increment();
+                return std;
+            }
+        }
+        return getOrCreate(id, name);
     }
 
-    @Override
-    public PrintWriter getLogWriter() throws SQLException {
-        return null;
+    private Students getOrCreate(int id, String name) {
+        lock.lock();
+        try {
+            Table t = table;
+            int i = indexOf(t, id, name);
+            if (i >= 0) {
+                t.referenced[i] = true;
+                hits.increment();
+                return t.slots[i];
+            }
+            misses.increment();
+            if (size >= maxSize) {
+                evictOne(t);
+            } else if ((size + 1) * 2 > t.slots.length && t.slots.length < maxCapacity) {
+                t = resize(t);
+            }
+            Students std = new Students(id, name);
+            insert(t, std);
+            size++;
+            return std;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    @Override
-    public void setLogWriter(PrintWriter printWriter) throws SQLException {
+    private static int indexOf(Table t, int id, String name) {
+        Students[] slots = t.slots;
+        int mask = slots.length - 1;
+        for (int i = hash(id, name) & mask; slots[i] != null; i = (i + 1) & mask) {
+            if (slots[i].getId() == id && slots[i].getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
+    private static int insert(Table t, Students std) {
+        Students[] slots = t.slots;
+        int mask = slots.length - 1;
+        int i = hash(std.getId(), std.getName()) & mask;
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = std;
+        return i;
     }
 
-    @Override
-    public int getLoginTimeout() throws SQLException {
-        return 0;
+    private Table resize(Table old) {
+        Table t = new Table(old.slots.length * 2);
+        for (int i = 0; i < old.slots.length; i++) {
+            if (old.slots[i] != null) {
+                t.referenced[insert(t, old.slots[i])] = old.referenced[i];
+            }
+        }
+        hand = 0;
+        table = t;
+        return t;
+    }
+
+    private void evictOne(Table t) {
+        Students[] slots = t.slots;
+        int mask = slots.length - 1;
+        while (true) {
+            int i = hand;
+            hand = (hand + 1) & mask;
+            if (slots[i] == null) {
+                continue;
+            }
+            if (t.referenced[i]) {
+                t.referenced[i] = false;
+            } else {
+                delete(t, i);
+                size--;
+                evictions.increment();
+                return;
+            }
+        }
     }
 
-    @Override
-    public void setLoginTimeout(int i) throws SQLException {
+    // 删除后把同一探测序列中后面的元素前移,不需要墓碑标记:
+    private static void delete(Table t, int i) {
+        Students[] slots = t.slots;
+        int mask = slots.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            Students std = slots[j];
+            if (std == null) {
+                break;
+            }
+            int home = hash(std.getId(), std.getName()) & mask;
+            // home不在(i, j]之间时,j处的元素可以前移到i:
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                slots[i] = std;
+                t.referenced[i] = t.referenced[j];
+                i = j;
+            }
+        }
+        slots[i] = null;
+        t.referenced[i] = false;
+    }
 
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
     }
 
-    @Override
-    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
-        return null;
+    public long getHitCount() {
+        return hits.sum();
     }
 
-    @Override
-    public <T> T unwrap(Class<T> aClass) throws SQLException {
-        return null;
+    public long getMissCount() {
+        return misses.sum();
     }
 
-    @Override
-    public boolean isWrapperFor(Class<?> aClass) throws SQLException {
-        return false;
+    public long getEvictionCount() {
+        return evictions.sum();
     }
 
+    @Override
+    public String toString() {
+        return String.format("StudentsCache{size=%d, maxSize=%d, hits=%d, misses=%d, evictions=%d}",
+                size(), maxSize, getHitCount(), getMissCount(), getEvictionCount());
+    }
 }
 
-/**
- * 享元:Flyweight
- */
-class Students {
-    // 持有缓存:
-    private static final Map<String, Students> cache = new HashMap<>();
-    private final int id;
-    private final String name;
+//当前线程累计分配的堆内存,使用HotSpot按线程统计的分配量
+class AllocationCounter {
+    private static final com.sun.management.ThreadMXBean THREADS;
 
-    private Students(int id, String name) {
-        this.id = id;
-        this.name = name;
+    static {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new IllegalStateException("Thread allocation counters are not supported by this JVM");
+        }
+        THREADS = (com.sun.management.ThreadMXBean) bean;
     }
 
-    // 静态工厂方法:
-    public static Students create(int id, String name) {
-        String key = id + "\n" + name;
-        // 先查找缓存:
-        Students std = cache.get(key);
-        if (std == null) {
-            // 未找到,创建新对象:
-            System.out.println(String.format("create new Student(%s, %s)", id, name));
-            std = new Students(id, name);
-            // 放入缓存:
-            cache.put(key, std);
-        } else {
-            // 缓存中存在:
-            System.out.println(String.format("return cached Student(%s, %s)", std.id, std.name));
+    public static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
+
+//统计Students.create()命中缓存时每次调用分配的字节数
+class FlyweightAllocationBenchmark {
+    public static void main(String[] args) {
+        int distinct = 1000;
+        String[] names = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            names[i] = "student" + i;
+            Students.create(i, names[i]);
         }
-        return std;
+        long iterations = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+        for (int round = 0; round < 3; round++) {
+            long before = AllocationCounter.allocatedBytes();
+            long start = System.nanoTime();
+            int checksum = 0;
+            for (long n = 0; n < iterations; n++) {
+                int i = (int) (n % distinct);
+                checksum += Students.create(i, names[i]).getId();
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = AllocationCounter.allocatedBytes() - before;
+            System.out.printf("round %d: %.1fns/hit, %.4f bytes/hit (checksum %d)%n", round,
+                    (double) elapsed / iterations, (double) allocated / iterations, checksum);
+        }
+        System.out.println(Students.getCache());
     }
 }
 
@@ -1726,7 +10640,22 @@ class Singleton {
 /**
  * 原型（Prototype）
  */
-class Student implements Cloneable {
+//Student的只读视角:可修改的Student和StudentTable中一行的只读视图都实现它
+interface StudentRecord {
+    int getId();
+
+    String getName();
+
+    int getScore();
+
+    // 复制为一个脱离原数据的普通Student:
+    Student copy();
+
+    // 复制到已有的对象中,不分配新对象:
+    Student copyTo(Student std);
+}
+
+class Student implements Cloneable, StudentRecord {
     private int id;
     private String name;
     private int score;
@@ -1773,6 +10702,358 @@ class Student implements Cloneable {
         return std;
     }
 
+    //复制到已有的对象中,不分配新对象.通过setter写入,子类覆写的setter同样生效
+    public Student copyTo(Student std) {
+        std.setId(this.id);
+        std.setName(this.name);
+        std.setScore(this.score);
+        return std;
+    }
+
+}
+
+//原型注册表:按名字登记模板,批量复制时可以写入调用方提供的数组,数组中已有的对象直接覆盖,不再分配
+class StudentPrototypes {
+    private final Map<String, Student> prototypes = new ConcurrentHashMap<>();
+
+    // 登记的是模板的副本,之后修改传入的对象不影响模板:
+    public void register(String key, Student prototype) {
+        prototypes.put(key, prototype.copy());
+    }
+
+    private Student prototype(String key) {
+        Student prototype = prototypes.get(key);
+        if (prototype == null) {
+            throw new IllegalArgumentException("Unknown prototype: " + key);
+        }
+        return prototype;
+    }
+
+    public Student create(String key) {
+        return prototype(key).copy();
+    }
+
+    // 从对象池中取出对象再复制,用完后归还到同一个池:
+    public Student create(String key, StudentPool pool) {
+        return prototype(key).copyTo(pool.acquire());
+    }
+
+    // 把模板复制到dest[from, to),null的位置才创建新对象:
+    public void copyInto(String key, Student[] dest, int from, int to) {
+        Objects.checkFromToIndex(from, to, dest.length);
+        Student prototype = prototype(key);
+        for (int i = from; i < to; i++) {
+            Student std = dest[i];
+            dest[i] = prototype.copyTo(std != null ? std : new Student());
+        }
+    }
+}
+
+//Student对象池:归还的对象在下次acquire()时重复使用,池满时归还的对象交给GC.
+// 不是线程安全的,每个线程使用自己的池,这样acquire()和release()不需要任何同步
+class StudentPool {
+    private final Student[] free;
+    private int size = 0;
+
+    public StudentPool(int capacity) {
+        this.free = new Student[capacity];
+    }
+
+    public Student acquire() {
+        if (size > 0) {
+            Student std = free[--size];
+            free[size] = null;
+            return std;
+        }
+        return new Student();
+    }
+
+    public void release(Student std) {
+        if (size < free.length) {
+            free[size++] = std;
+        }
+    }
+
+    public int getFreeCount() {
+        return size;
+    }
+}
+
+//比较copy()、批量复制到数组和对象池三种方式每个副本的耗时和分配的字节数.
+// 没有引入JMH,用AllocationCounter读取当前线程分配的字节数代替-prof gc,前几轮作为预热
+class PrototypeCopyBenchmark {
+    public static void main(String[] args) {
+        int batch = 1000;
+        long rounds = args.length > 0 ? Long.parseLong(args[0]) : 50_000;
+        Student template = new Student();
+        template.setId(1);
+        template.setName("template");
+        template.setScore(60);
+        StudentPrototypes prototypes = new StudentPrototypes();
+        prototypes.register("default", template);
+        Student[] batchArray = new Student[batch];
+        StudentPool pool = new StudentPool(batch);
+
+        for (int warmup = 0; warmup < 3; warmup++) {
+            long before = AllocationCounter.allocatedBytes();
+            long start = System.nanoTime();
+            for (long r = 0; r < rounds; r++) {
+                for (int i = 0; i < batch; i++) {
+                    batchArray[i] = template.copy();
+                }
+            }
+            report("copy()", rounds * batch, start, before);
+
+            before = AllocationCounter.allocatedBytes();
+            start = System.nanoTime();
+            for (long r = 0; r < rounds; r++) {
+                prototypes.copyInto("default", batchArray, 0, batch);
+            }
+            report("copyInto()", rounds * batch, start, before);
+
+            before = AllocationCounter.allocatedBytes();
+            start = System.nanoTime();
+            for (long r = 0; r < rounds; r++) {
+                for (int i = 0; i < batch; i++) {
+                    batchArray[i] = prototypes.create("default", pool);
+                }
+                for (int i = 0; i < batch; i++) {
+                    pool.release(batchArray[i]);
+                }
+            }
+            report("pool", rounds * batch, start, before);
+        }
+    }
+
+    private static void report(String label, long copies, long start, long allocatedBefore) {
+        long elapsed = System.nanoTime() - start;
+        long allocated = AllocationCounter.allocatedBytes() - allocatedBefore;
+        System.out.printf("%-10s %.2fns/copy, %.2f bytes/copy%n", label, (double) elapsed / copies, (double) allocated / copies);
+    }
+}
+
+//按列存储大量Student记录:id和score放在int数组中,name放进去重的字典,每行只存字典编号.
+// 几千万条记录只占几个大数组,没有每个对象的对象头和引用,GC也只需扫描几个数组.
+// get()返回的是读取表中数据的只读视图,修改score通过setScore(row, score),不是线程安全的
+class StudentTable {
+    private int[] ids;
+    private int[] scores;
+    private int[] nameCodes;
+    private int size = 0;
+    // 名字字典:
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private String[] names = new String[16];
+
+    public StudentTable() {
+        this(1024);
+    }
+
+    public StudentTable(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        this.ids = new int[capacity];
+        this.scores = new int[capacity];
+        this.nameCodes = new int[capacity];
+    }
+
+    // 追加一行,返回行号:
+    public int append(int id, String name, int score) {
+        if (size == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            nameCodes = Arrays.copyOf(nameCodes, capacity);
+        }
+        ids[size] = id;
+        scores[size] = score;
+        nameCodes[size] = encode(name);
+        return size++;
+    }
+
+    public int append(StudentRecord std) {
+        return append(std.getId(), std.getName(), std.getScore());
+    }
+
+    private int encode(String name) {
+        Integer code = nameIndex.get(name);
+        if (code == null) {
+            code = nameIndex.size();
+            if (code == names.length) {
+                names = Arrays.copyOf(names, code * 2);
+            }
+            names[code] = name;
+            nameIndex.put(name, code);
+        }
+        return code;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // 不重复的名字个数:
+    public int getNameCount() {
+        return nameIndex.size();
+    }
+
+    public int getId(int row) {
+        return ids[checkRow(row)];
+    }
+
+    public String getName(int row) {
+        return names[nameCodes[checkRow(row)]];
+    }
+
+    public int getScore(int row) {
+        return scores[checkRow(row)];
+    }
+
+    public void setScore(int row, int score) {
+        scores[checkRow(row)] = score;
+    }
+
+    int checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of range [0, " + size + ")");
+        }
+        return row;
+    }
+
+    // 返回指向某一行的只读视图,读取的是表中的当前数据:
+    public StudentView get(int row) {
+        return new StudentView(this, checkRow(row));
+    }
+
+    // 返回一个可以移动的视图,扫描时重复使用同一个对象:
+    public StudentView newView() {
+        return new StudentView(this, -1);
+    }
+
+    // 按行号顺序回调score在[minScore, maxScore]之间的行,只顺序读取score一列:
+    public void scanByScore(int minScore, int maxScore, IntConsumer consumer) {
+        int[] scores = this.scores;
+        for (int row = 0, n = size; row < n; row++) {
+            int score = scores[row];
+            if (score >= minScore && score <= maxScore) {
+                consumer.accept(row);
+            }
+        }
+    }
+
+    // 返回score在[minScore, maxScore]之间的行号:
+    public int[] findByScore(int minScore, int maxScore) {
+        int[] rows = new int[16];
+        int count = 0;
+        int[] scores = this.scores;
+        for (int row = 0, n = size; row < n; row++) {
+            int score = scores[row];
+            if (score >= minScore && score <= maxScore) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+}
+
+//StudentTable中一行的享元只读视图,本身不保存数据.
+// 不是Student的子类,不会被当作可修改的Student使用;通过moveTo()指向另一行后可以重复使用,
+// copy()和copyTo()返回脱离表的普通Student
+class StudentView implements StudentRecord {
+    private final StudentTable table;
+    private int row;
+
+    StudentView(StudentTable table, int row) {
+        this.table = table;
+        this.row = row;
+    }
+
+    public StudentView moveTo(int row) {
+        this.row = table.checkRow(row);
+        return this;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    @Override
+    public int getId() {
+        return table.getId(row);
+    }
+
+    @Override
+    public String getName() {
+        return table.getName(row);
+    }
+
+    @Override
+    public int getScore() {
+        return table.getScore(row);
+    }
+
+    @Override
+    public Student copy() {
+        return copyTo(new Student());
+    }
+
+    @Override
+    public Student copyTo(Student std) {
+        std.setId(getId());
+        std.setName(getName());
+        std.setScore(getScore());
+        return std;
+    }
+}
+
+//比较n个Student对象和StudentTable占用的堆内存以及Full GC耗时
+class StudentTableBenchmark {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        // 名字有重复,和实际数据类似:
+        String[] names = new String[10_000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "student" + i;
+        }
+
+        long base = usedHeapAfterGc();
+        Student[] objects = new Student[n];
+        for (int i = 0; i < n; i++) {
+            Student std = new Student();
+            std.setId(i);
+            std.setName(names[i % names.length]);
+            std.setScore(i % 101);
+            objects[i] = std;
+        }
+        report("Student[]", n, base, objects);
+        objects = null;
+
+        base = usedHeapAfterGc();
+        StudentTable table = new StudentTable(n);
+        for (int i = 0; i < n; i++) {
+            table.append(i, names[i % names.length], i % 101);
+        }
+        report("StudentTable", n, base, table);
+    }
+
+    private static void report(String label, int n, long base, Object keepAlive) {
+        long start = System.nanoTime();
+        long used = usedHeapAfterGc();
+        long gcMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("%s: %d rows, heap=%dMB (%.1f bytes/row), full GC=%dms%n", label, n,
+                (used - base) >> 20, (double) (used - base) / n, gcMillis);
+        // 保证测量期间对象仍然可达:
+        if (keepAlive.hashCode() == 42) {
+            System.out.println();
+        }
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }
 
 /**